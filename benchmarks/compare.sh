@@ -0,0 +1,36 @@
+#!/bin/sh
+#
+# Compares two JMH result files in CSV format, and prints the change in score for each benchmark.
+#
+# Usage: compare.sh <baseline.csv> <candidate.csv>
+#
+
+if [ $# -ne 2 ]; then
+    echo "Usage: $0 <baseline.csv> <candidate.csv>" >&2
+    exit 1
+fi
+
+awk -F, '
+    function key(    k, i) {
+        k = $1
+        sub(/^se\.dykstrom\.ant\.fasm\./, "", k)
+        for (i = 8; i <= NF; i++) {
+            if ($i != "") {
+                k = k " " $i
+            }
+        }
+        return k
+    }
+    { gsub(/"/, "") }
+    FNR == 1 { next }
+    NR == FNR { base[key()] = $5; next }
+    {
+        k = key()
+        if (k in base) {
+            change = (base[k] != 0) ? 100 * ($5 - base[k]) / base[k] : 0
+            printf "%-50s %12.3f %12.3f %-6s %+8.1f%%\n", k, base[k], $5, $7, change
+        } else {
+            printf "%-50s %12s %12.3f %-6s %9s\n", k, "-", $5, $7, "new"
+        }
+    }
+' "$1" "$2"
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the scan-and-map pipeline of the task, that is, scanning the source directory,
+ * detecting the format of each source file, and checking if the destination file is up to date.
+ * All destination files are up to date, so the compiler is never run.
+ *
+ * @author Johan Dykstrom
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExecuteBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int files;
+
+    @Param({"10", "1000"})
+    public int lines;
+
+    @Param({"NONE", "FIRST", "HEADER"})
+    public Layout layout;
+
+    private Path root;
+    private Path srcDir;
+    private Path destDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("fasm-bench-");
+        srcDir = root.resolve("src");
+        destDir = root.resolve("bin");
+        SourceTree.generate(srcDir, destDir, files, lines, layout);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SourceTree.delete(root);
+    }
+
+    @Benchmark
+    public void execute() {
+        Fasm fasm = new Fasm();
+        fasm.setProject(new Project());
+        fasm.setSrcDir(srcDir.toString());
+        fasm.setDestDir(destDir.toString());
+        fasm.execute();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks mapping format directives to destination file types.
+ *
+ * @author Johan Dykstrom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileTypeBenchmark {
+
+    private static final String[] FORMATS = {"binary", "binary as 'com'", "elf64", "elf64 executable", "ms64 coff", "mz", "pe64 console", "pe gui dll"};
+
+    @Benchmark
+    public int getFileType() {
+        int length = 0;
+        for (String format : FORMATS) {
+            length += FormatUtils.getFileType(format).length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+/**
+ * Where to put the format directive in a generated source file. This enum is public,
+ * because JMH needs to access benchmark parameters from the generated code.
+ *
+ * @author Johan Dykstrom
+ */
+public enum Layout {
+    /** No format directive at all, so the entire file must be scanned. */
+    NONE,
+    /** The format directive on the first line. */
+    FIRST,
+    /** The format directive after a comment header that makes up half of the file. */
+    HEADER
+}
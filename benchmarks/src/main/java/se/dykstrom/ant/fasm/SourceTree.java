@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Generates source files and source trees for the benchmarks.
+ *
+ * @author Johan Dykstrom
+ */
+final class SourceTree {
+
+    /** The number of source files in each generated directory. */
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private SourceTree() { }
+
+    /**
+     * Writes a source file with the given number of lines, and the format directive placed according to {@code layout}.
+     */
+    static void writeSourceFile(Path file, int lines, Layout layout) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            int header = (layout == Layout.HEADER) ? lines / 2 : 0;
+            for (int i = 0; i < header; i++) {
+                writer.write("; Generated comment line " + i + " describing the code below in some detail");
+                writer.newLine();
+            }
+            if (layout != Layout.NONE) {
+                writer.write("format ELF64");
+                writer.newLine();
+            }
+            for (int i = header; i < lines; i++) {
+                writer.write("    mov rax, " + i + "          ; load the value " + i);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Generates a source tree with {@code files} source files in {@code srcDir}, spread over subdirectories.
+     * If {@code destDir} is not null, an up-to-date destination file is created for each source file, so
+     * that nothing needs to be compiled.
+     */
+    static void generate(Path srcDir, Path destDir, int files, int lines, Layout layout) throws IOException {
+        String fileType = FormatUtils.getFileType((layout == Layout.NONE) ? "binary" : "elf64");
+        FileTime future = FileTime.fromMillis(System.currentTimeMillis() + 3_600_000);
+        for (int i = 0; i < files; i++) {
+            String srcFilename = "dir" + (i / FILES_PER_DIRECTORY) + "/file" + i + ".asm";
+            Path srcFile = srcDir.resolve(srcFilename);
+            Files.createDirectories(srcFile.getParent());
+            writeSourceFile(srcFile, lines, layout);
+            if (destDir != null) {
+                Path destFile = FileUtils.getDestPath(srcFilename, destDir, fileType);
+                Files.createDirectories(destFile.getParent());
+                Files.createFile(destFile);
+                Files.setLastModifiedTime(destFile, future);
+            }
+        }
+    }
+
+    /**
+     * Deletes the given directory and everything in it.
+     */
+    static void delete(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
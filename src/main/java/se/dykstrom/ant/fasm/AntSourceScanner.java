@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A source scanner that lists each directory using {@link File#list()}, like the Ant directory
+ * scanner itself. The directory tree is scanned depth first, on the calling thread, and memory
+ * usage is bounded by the depth of the directory tree.
+ * <p>
+ * If created with a directory index, the directories are listed using the index instead, and the
+ * attributes of each included file are available from {@link #getAttributes()}. Directories that
+ * are already in the index are not listed again.
+ *
+ * @author Johan Dykstrom
+ */
+final class AntSourceScanner extends SourceScanner {
+
+    /** The directories being scanned, the innermost directory first. */
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    /** Lists the directories, or null to list them using {@link File#list()}. */
+    private final DirectoryIndex index;
+
+    private String next;
+    private BasicFileAttributes nextAttributes;
+    private BasicFileAttributes attributes;
+    private boolean started;
+
+    AntSourceScanner() {
+        this(null);
+    }
+
+    AntSourceScanner(DirectoryIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = findNext();
+        }
+        return next != null;
+    }
+
+    /**
+     * Returns the next included file, relative to the base directory.
+     */
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String result = next;
+        attributes = nextAttributes;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Returns the attributes of the file most recently returned by {@link #next()},
+     * or {@code null} if the scanner was created without a directory index.
+     */
+    @Override
+    BasicFileAttributes getAttributes() {
+        return attributes;
+    }
+
+    private String findNext() {
+        if (!started) {
+            started = true;
+            preparePatterns();
+            push(getBasedir(), "");
+        }
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.index == frame.names.length) {
+                stack.pop();
+                continue;
+            }
+
+            String name = frame.vpath + frame.names[frame.index];
+            File file = new File(frame.directory, frame.names[frame.index]);
+            BasicFileAttributes fileAttributes = (frame.attributes != null) ? frame.attributes[frame.index] : null;
+            frame.index++;
+
+            if ((fileAttributes != null) ? fileAttributes.isDirectory() : file.isDirectory()) {
+                if (isScannedDirectory(name) && isTraversable(file)) {
+                    push(file, name + File.separator);
+                }
+            } else if (isIncludedFile(name, file)) {
+                nextAttributes = fileAttributes;
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private void push(File directory, String vpath) {
+        if (index != null) {
+            // The listing is already sorted by name
+            Map<String, BasicFileAttributes> listing = index.list(directory.toPath());
+            String[] names = listing.keySet().toArray(new String[0]);
+            stack.push(new Frame(directory, vpath, names, listing.values().toArray(new BasicFileAttributes[0])));
+        } else {
+            String[] names = directory.list();
+            if (names != null) {
+                // Sort the names to make the order of the included files predictable
+                Arrays.sort(names);
+                stack.push(new Frame(directory, vpath, names, null));
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given directory should be traversed. Symbolic links are only followed
+     * if configured, and never if they point to a directory that is already being scanned.
+     */
+    private boolean isTraversable(File directory) {
+        if (!Files.isSymbolicLink(directory.toPath())) {
+            return true;
+        }
+        if (!isFollowSymlinks()) {
+            return false;
+        }
+        try {
+            File target = directory.getCanonicalFile();
+            for (Frame frame : stack) {
+                if (frame.directory.getCanonicalFile().equals(target)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A directory being scanned, and the position of the scan in that directory.
+     */
+    private static final class Frame {
+
+        private final File directory;
+        private final String vpath;
+        private final String[] names;
+        private final BasicFileAttributes[] attributes;
+        private int index;
+
+        Frame(File directory, String vpath, String[] names, BasicFileAttributes[] attributes) {
+            this.directory = directory;
+            this.vpath = vpath;
+            this.names = names;
+            this.attributes = attributes;
+        }
+    }
+}
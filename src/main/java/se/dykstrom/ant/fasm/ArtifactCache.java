@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A local, content-addressed store of compiled destination files. Each destination file is stored
+ * under a key computed from the contents of all files used to compile it, the identity of the
+ * compiler, and the compiler options. The store can be shared by several builds, also in different
+ * JVMs. Entries are written to temporary files, and atomically renamed into place, so a reader will
+ * never see a partial entry. When the store grows larger than its maximum size, the least recently
+ * used entries are evicted, while holding a file lock on the store.
+ *
+ * @author Johan Dykstrom
+ */
+final class ArtifactCache {
+
+    private static final String LOCK_FILE = ".lock";
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    /** Marks the hash of the source file in the cache key. */
+    private static final String SOURCE_MARKER = "src:";
+
+    private final Path directory;
+    private final long maxSize;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger stores = new AtomicInteger();
+
+    /**
+     * Creates a new artifact cache in the given directory.
+     *
+     * @param directory The cache directory, which is created if it does not exist.
+     * @param maxSize The maximum size of the cache in bytes.
+     */
+    ArtifactCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache key for a destination file compiled from the given input files, with the given
+     * compiler and compiler options. Only the contents of the input files are used, not their paths, so
+     * identical sources in different workspaces map to the same key.
+     *
+     * @param srcFile The source file.
+     * @param files The files used to compile the destination file, including the source file itself.
+     * @param compilerId A string that identifies the compiler binary and version.
+     * @param options The compiler options, not including the compiler, source file, or destination file.
+     * @return The cache key.
+     * @throws BuildException If any of the input files cannot be read.
+     */
+    static String getKey(Path srcFile, Collection<Path> files, String compilerId, List<String> options) {
+        return getKey(srcFile, files, compilerId, options, FileUtils::hash);
+    }
+
+    /**
+     * Returns the cache key for a destination file, like {@link #getKey(Path, Collection, String, List)},
+     * using {@code hasher} to get the hash of each input file. This makes it possible to reuse hashes
+     * that have already been computed, for example by the {@link BuildState}.
+     */
+    static String getKey(Path srcFile, Collection<Path> files, String compilerId, List<String> options, Function<Path, String> hasher) {
+        Path source = srcFile.toAbsolutePath().normalize();
+        List<String> parts = new ArrayList<>();
+        parts.add(compilerId);
+        parts.addAll(options);
+        // The source file is marked, so the key changes if another file becomes the source file
+        files.stream()
+                .map(file -> (file.toAbsolutePath().normalize().equals(source) ? SOURCE_MARKER : "") + hasher.apply(file))
+                .sorted()
+                .forEach(parts::add);
+        return FileUtils.hash(parts.toArray(new String[0]));
+    }
+
+    /**
+     * Copies the cache entry with the given key to {@code destFile}, if there is such an entry.
+     * The entry is copied to the temporary file of the destination file, and then moved into place,
+     * so the destination file is never left incomplete.
+     *
+     * @param key The cache key.
+     * @param destFile The destination file.
+     * @return True if the entry was found and copied.
+     * @throws BuildException If the entry was found, but could not be copied.
+     */
+    boolean fetch(String key, Path destFile) {
+        Path entry = getEntry(key);
+        try {
+            // Update the modification time to keep track of the least recently used entries
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            Path temp = FileUtils.getTempPath(destFile);
+            try {
+                Files.copy(entry, temp, StandardCopyOption.REPLACE_EXISTING);
+                FileUtils.move(temp, destFile);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            hits.incrementAndGet();
+            return true;
+        } catch (NoSuchFileException e) {
+            // Missing, or evicted by another build
+            misses.incrementAndGet();
+            return false;
+        } catch (IOException e) {
+            throw new BuildException("Cannot copy cached file to '" + destFile + "'", e);
+        }
+    }
+
+    /**
+     * Stores a copy of {@code destFile} in the cache under the given key.
+     *
+     * @param key The cache key.
+     * @param destFile The destination file to store.
+     * @throws BuildException If the file could not be stored.
+     */
+    void store(String key, Path destFile) {
+        Path entry = getEntry(key);
+        try {
+            Files.createDirectories(entry.getParent());
+            Path temp = Files.createTempFile(directory, TEMP_PREFIX, null);
+            try {
+                Files.copy(destFile, temp, StandardCopyOption.REPLACE_EXISTING);
+                FileUtils.move(temp, entry);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            stores.incrementAndGet();
+        } catch (IOException e) {
+            throw new BuildException("Cannot store file '" + destFile + "' in cache", e);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is no larger than its maximum size.
+     * Nothing is done unless something has been stored in the cache. The cache directory is locked
+     * during eviction, to prevent several builds from evicting entries at the same time.
+     *
+     * @throws BuildException If the cache directory cannot be read or locked.
+     */
+    void evict() {
+        if (stores.get() == 0) {
+            return;
+        }
+
+        // File locks are held by the JVM, so threads in the same JVM must synchronize too
+        synchronized (ArtifactCache.class) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    evictEntries();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new BuildException("Cannot evict entries from cache directory '" + directory + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is no larger than its maximum size.
+     * The cache directory must be locked by the caller.
+     */
+    private void evictEntries() throws IOException {
+        List<Path> entries = listEntries();
+        long size = 0;
+        for (Path entry : entries) {
+            size += sizeOf(entry);
+        }
+        for (Path entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            long entrySize = sizeOf(entry);
+            if (Files.deleteIfExists(entry)) {
+                size -= entrySize;
+            }
+        }
+    }
+
+    /**
+     * Returns all cache entries, the least recently used entry first.
+     */
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            return paths.filter(path -> path.getNameCount() == directory.getNameCount() + 2)
+                    .filter(Files::isRegularFile)
+                    .sorted(Comparator.comparingLong(ArtifactCache::lastModifiedOf))
+                    .collect(toList());
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModifiedOf(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the path to the cache entry with the given key. Entries are spread over subdirectories
+     * named after the first two characters of the key, to keep the directories small.
+     */
+    private Path getEntry(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * Returns the number of cache hits.
+     */
+    int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of cache misses.
+     */
+    int getMisses() {
+        return misses.get();
+    }
+}
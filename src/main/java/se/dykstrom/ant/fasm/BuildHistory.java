@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the outcome of the last compilation of each source file, and how long it took.
+ * The history is used to schedule the compilations of a build: source files that failed the last
+ * time are compiled first, to give early feedback, then new source files, and then the remaining
+ * source files, the slowest first, so the longest compilations do not stretch the end of the build.
+ * The memory used by the last compilation of each source file is also recorded, so the memory
+ * budget of a build can be shared between compilations. The history can be saved to, and loaded
+ * from, a history file.
+ *
+ * @author Johan Dykstrom
+ */
+final class BuildHistory {
+
+    private static final String HEADER = "# fasm-ant history file";
+    private static final String SEPARATOR = "\t";
+
+    /** Durations longer than this, in milliseconds, are scheduled as if they were this long. */
+    private static final long MAX_SCHEDULE_DURATION = 1L << 60;
+
+    /** The schedule priority of new files, and the offset of the priorities of failed files. */
+    private static final long PRIORITY_NEW = -(1L << 61);
+    private static final long PRIORITY_FAILED = -(1L << 62);
+
+    /** Maps each source file to its history entry. */
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Records the outcome of compiling the given source file. If the duration is not known,
+     * for example because the file was fetched from the artifact cache, the duration of the
+     * previous compilation is kept.
+     *
+     * @param srcFile The source file.
+     * @param success True if the compilation was successful.
+     * @param duration The time in nanoseconds it took to compile the file, or 0 if not known.
+     */
+    void put(Path srcFile, boolean success, long duration) {
+        put(srcFile, success, duration, 0);
+    }
+
+    /**
+     * Records the outcome of compiling the given source file, like {@link #put(Path, boolean, long)},
+     * and the memory used by the compiler. If the memory is not known, the memory used by the previous
+     * compilation is kept.
+     *
+     * @param srcFile The source file.
+     * @param success True if the compilation was successful.
+     * @param duration The time in nanoseconds it took to compile the file, or 0 if not known.
+     * @param memory The memory in kilobytes used by the compiler, or 0 if not known.
+     */
+    void put(Path srcFile, boolean success, long duration, long memory) {
+        Path key = srcFile.toAbsolutePath().normalize();
+        Entry previous = entries.get(key);
+        long millis = TimeUnit.NANOSECONDS.toMillis(duration);
+        if (duration == 0 && previous != null) {
+            millis = previous.duration;
+        }
+        if (memory == 0 && previous != null) {
+            memory = previous.memory;
+        }
+        entries.put(key, new Entry(millis, success, memory));
+    }
+
+    /**
+     * Returns the duration in milliseconds of the last compilation of the given source file,
+     * or -1 if the source file has never been compiled.
+     */
+    long getDuration(Path srcFile) {
+        Entry entry = entries.get(srcFile.toAbsolutePath().normalize());
+        return (entry != null) ? entry.duration : -1;
+    }
+
+    /**
+     * Returns the memory in kilobytes used by the last compilation of the given source file,
+     * or -1 if not known.
+     */
+    long getMemory(Path srcFile) {
+        Entry entry = entries.get(srcFile.toAbsolutePath().normalize());
+        return (entry != null && entry.memory > 0) ? entry.memory : -1;
+    }
+
+    /**
+     * Returns {@code true} if the last compilation of the given source file failed.
+     */
+    boolean hasFailed(Path srcFile) {
+        Entry entry = entries.get(srcFile.toAbsolutePath().normalize());
+        return entry != null && !entry.success;
+    }
+
+    /**
+     * Returns the schedule priority of the given source file. Source files with lower priorities
+     * should be compiled first: previously failed files, then files that have never been compiled,
+     * and then the remaining files by descending duration. The priority changes when the outcome of
+     * a compilation is recorded, so it must be read once, before the compilation is scheduled.
+     */
+    long getSchedulePriority(Path srcFile) {
+        Entry entry = entries.get(srcFile.toAbsolutePath().normalize());
+        if (entry == null) {
+            return PRIORITY_NEW;
+        }
+        long duration = Math.min(entry.duration, MAX_SCHEDULE_DURATION);
+        return (entry.success ? 0 : PRIORITY_FAILED) - duration;
+    }
+
+    /**
+     * Loads the history from the given history file. If the file does not exist, nothing is loaded.
+     * If the file cannot be parsed, it is ignored, and the history will be built up again.
+     *
+     * @param historyFile The history file to load.
+     * @throws BuildException If the file exists, but cannot be read.
+     */
+    void load(Path historyFile) {
+        if (Files.notExists(historyFile)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(historyFile, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length == 4) {
+                    entries.put(Paths.get(fields[0]), new Entry(Long.parseLong(fields[1]), Boolean.parseBoolean(fields[2]),
+                            Long.parseLong(fields[3])));
+                }
+            }
+        } catch (NumberFormatException e) {
+            entries.clear();
+        } catch (IOException e) {
+            throw new BuildException("Cannot read history file '" + historyFile + "'", e);
+        }
+    }
+
+    /**
+     * Saves the history to the given history file.
+     *
+     * @param historyFile The history file to save.
+     * @throws BuildException If the file cannot be written.
+     */
+    void save(Path historyFile) {
+        FileUtils.makeDirectory(historyFile.toAbsolutePath());
+
+        try (BufferedWriter writer = Files.newBufferedWriter(historyFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<Path, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writer.write(String.join(SEPARATOR, mapEntry.getKey().toString(), Long.toString(entry.duration),
+                        Boolean.toString(entry.success), Long.toString(entry.memory)));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Cannot write history file '" + historyFile + "'", e);
+        }
+    }
+
+    /**
+     * The outcome, duration, and memory usage of the last compilation of a source file.
+     */
+    private static class Entry {
+
+        private final long duration;
+        private final boolean success;
+        private final long memory;
+
+        private Entry(long duration, boolean success, long memory) {
+            this.duration = duration;
+            this.success = success;
+            this.memory = memory;
+        }
+    }
+}
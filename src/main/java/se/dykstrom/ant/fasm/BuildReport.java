@@ -0,0 +1,321 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Collects timing and outcome information for each source file in a build, and writes it to
+ * a machine-readable report file in JSON format. Records are created by the task thread, before
+ * any compilation starts, and are then updated by the worker thread that compiles the source file.
+ *
+ * @author Johan Dykstrom
+ */
+final class BuildReport {
+
+    /** The version of the report format. */
+    static final int VERSION = 1;
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    /**
+     * The reason a source file was, or was not, compiled.
+     */
+    enum Reason {
+        /** The destination file is up to date. */
+        UP_TO_DATE,
+        /** The destination file does not exist. */
+        MISSING,
+        /** The source file is newer than the destination file. */
+        SOURCE_NEWER,
+        /** A file included by the source file is newer than the destination file. */
+        INCLUDE_NEWER,
+        /** The contents of the source file, or any file it includes, have changed. */
+        INPUTS_CHANGED,
+        /** The compiler command line has changed. */
+        ARGS_CHANGED;
+
+        /**
+         * Returns the name used for this reason in the report file.
+         */
+        String getName() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    /** Maps each source file and destination file to its record. */
+    private final Map<Map.Entry<Path, Path>, Record> records = new LinkedHashMap<>();
+
+    private long scanTime;
+    private final long startTime = System.nanoTime();
+    private long endTime;
+
+    /**
+     * Returns the record of the given source file, creating a new record if needed.
+     * This method must only be called by the task thread.
+     */
+    Record get(Path srcFile) {
+        return get(srcFile, null);
+    }
+
+    /**
+     * Returns the record of the given source file, when compiled to the given destination file,
+     * creating a new record if needed. A source file that is compiled in several variants has one
+     * record for each destination file. This method must only be called by the task thread.
+     */
+    Record get(Path srcFile, Path destFile) {
+        return records.computeIfAbsent(new AbstractMap.SimpleImmutableEntry<>(srcFile, destFile), key -> new Record(srcFile, destFile));
+    }
+
+    /**
+     * Adds to the time in nanoseconds spent scanning the source directory.
+     */
+    void addScanTime(long scanTime) {
+        this.scanTime += scanTime;
+    }
+
+    /**
+     * Marks the end of the build.
+     */
+    void stop() {
+        endTime = System.nanoTime();
+    }
+
+    /**
+     * Writes this report to the given file, in JSON format.
+     *
+     * @param reportFile The report file to write.
+     * @throws BuildException If the report file cannot be written.
+     */
+    void save(Path reportFile) {
+        FileUtils.makeDirectory(reportFile.toAbsolutePath());
+
+        try (BufferedWriter writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+            write(writer);
+        } catch (IOException e) {
+            throw new BuildException("Cannot write report file '" + reportFile + "'", e);
+        }
+    }
+
+    /**
+     * Writes this report to the given writer, in JSON format.
+     */
+    void write(Writer writer) throws IOException {
+        writer.write("{\n");
+        writer.write("  \"version\": " + VERSION + ",\n");
+        writer.write("  \"totals\": {\n");
+        writer.write("    \"files\": " + records.size() + ",\n");
+        writer.write("    \"compiled\": " + sum(record -> record.isCompiled() ? 1 : 0) + ",\n");
+        writer.write("    \"cached\": " + sum(record -> record.cached ? 1 : 0) + ",\n");
+        writer.write("    \"failed\": " + sum(record -> record.isCompiled() && record.status != CompileResult.Status.SUCCESS ? 1 : 0) + ",\n");
+        writer.write("    \"cancelled\": " + sum(record -> record.status == CompileResult.Status.CANCELLED ? 1 : 0) + ",\n");
+        writer.write("    \"upToDate\": " + sum(record -> record.reason == Reason.UP_TO_DATE ? 1 : 0) + ",\n");
+        writer.write("    \"wallMillis\": " + toMillis(endTime - startTime) + ",\n");
+        writer.write("    \"scanMillis\": " + toMillis(scanTime) + ",\n");
+        writer.write("    \"formatMillis\": " + toMillis(sum(record -> record.formatTime)) + ",\n");
+        writer.write("    \"checkMillis\": " + toMillis(sum(record -> record.checkTime)) + ",\n");
+        writer.write("    \"spawnMillis\": " + toMillis(sum(record -> record.spawnTime)) + ",\n");
+        writer.write("    \"assemblyMillis\": " + toMillis(sum(record -> record.assemblyTime)) + ",\n");
+        writer.write("    \"outputSize\": " + sum(record -> record.outputSize) + "\n");
+        writer.write("  },\n");
+        writer.write("  \"percentiles\": {\n");
+        writer.write("    \"formatMillis\": " + percentiles(record -> record.formatTime, false) + ",\n");
+        writer.write("    \"checkMillis\": " + percentiles(record -> record.checkTime, false) + ",\n");
+        writer.write("    \"spawnMillis\": " + percentiles(record -> record.spawnTime, true) + ",\n");
+        writer.write("    \"assemblyMillis\": " + percentiles(record -> record.assemblyTime, true) + "\n");
+        writer.write("  },\n");
+        writer.write("  \"files\": [");
+        String separator = "\n";
+        for (Record record : records.values()) {
+            writer.write(separator);
+            writer.write("    {");
+            writer.write("\"src\": " + quote(record.srcFile.toString()));
+            writer.write(", \"dest\": " + ((record.destFile != null) ? quote(record.destFile.toString()) : "null"));
+            writer.write(", \"variant\": " + ((record.variant != null) ? quote(record.variant) : "null"));
+            writer.write(", \"format\": " + ((record.format != null) ? quote(record.format) : "null"));
+            writer.write(", \"reason\": " + ((record.reason != null) ? quote(record.reason.getName()) : "null"));
+            writer.write(", \"status\": " + ((record.status != null) ? quote(record.status.name().toLowerCase(Locale.ROOT)) : "null"));
+            writer.write(", \"cached\": " + record.cached);
+            writer.write(", \"exitValue\": " + (record.isCompiled() ? Integer.toString(record.exitValue) : "null"));
+            writer.write(", \"outputSize\": " + record.outputSize);
+            writer.write(", \"formatMillis\": " + toMillis(record.formatTime));
+            writer.write(", \"checkMillis\": " + toMillis(record.checkTime));
+            writer.write(", \"spawnMillis\": " + toMillis(record.spawnTime));
+            writer.write(", \"assemblyMillis\": " + toMillis(record.assemblyTime));
+            writer.write("}");
+            separator = ",\n";
+        }
+        writer.write(records.isEmpty() ? "]\n" : "\n  ]\n");
+        writer.write("}\n");
+    }
+
+    private long sum(ToLongFunction<Record> function) {
+        return records.values().stream().mapToLong(function).sum();
+    }
+
+    /**
+     * Returns a JSON object with the percentiles, and the maximum, of the given time. If {@code compiledOnly}
+     * is true, only source files that were actually compiled are taken into account.
+     */
+    private String percentiles(ToLongFunction<Record> function, boolean compiledOnly) {
+        long[] times = records.values().stream()
+                .filter(record -> !compiledOnly || record.isCompiled())
+                .mapToLong(function)
+                .sorted()
+                .toArray();
+        StringBuilder builder = new StringBuilder("{");
+        for (double percentile : PERCENTILES) {
+            builder.append("\"p").append((int) percentile).append("\": ").append(toMillis(percentile(times, percentile))).append(", ");
+        }
+        builder.append("\"max\": ").append(toMillis((times.length > 0) ? times[times.length - 1] : 0)).append("}");
+        return builder.toString();
+    }
+
+    /**
+     * Returns the given percentile of the sorted array {@code values}, using the nearest-rank method.
+     * Returns 0 if the array is empty.
+     */
+    static long percentile(long[] values, double percentile) {
+        if (values.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * values.length);
+        return values[Math.max(0, Math.min(values.length, rank) - 1)];
+    }
+
+    /**
+     * Converts the given time in nanoseconds to a JSON number of milliseconds, with three decimals.
+     */
+    static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    /**
+     * Returns the given string as a quoted JSON string.
+     */
+    static String quote(String s) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * The timing and outcome of a single source file. Times are in nanoseconds. A record is only
+     * updated by one thread at a time, and is read by the task thread after the compile result
+     * has been reported.
+     */
+    static final class Record {
+
+        private final Path srcFile;
+        private Path destFile;
+        private String variant;
+        private String format;
+        private Reason reason;
+        private CompileResult.Status status;
+        private boolean cached;
+        private int exitValue;
+        private long outputSize;
+        private long formatTime;
+        private long checkTime;
+        private long spawnTime;
+        private long assemblyTime;
+
+        Record(Path srcFile, Path destFile) {
+            this.srcFile = srcFile;
+            this.destFile = destFile;
+        }
+
+        void setFormat(Path destFile, String format, long formatTime) {
+            this.destFile = destFile;
+            this.format = format;
+            this.formatTime = formatTime;
+        }
+
+        /**
+         * Sets the name of the variant the destination file belongs to, or {@code null} if it has no name.
+         */
+        void setVariant(String variant) {
+            this.variant = variant;
+        }
+
+        void setReason(Reason reason, long checkTime) {
+            this.reason = reason;
+            this.checkTime = checkTime;
+        }
+
+        void setProcess(long spawnTime, long assemblyTime) {
+            this.spawnTime = spawnTime;
+            this.assemblyTime = assemblyTime;
+        }
+
+        /**
+         * Sets the size in bytes of the destination file written by a successful compilation.
+         */
+        void setOutputSize(long outputSize) {
+            this.outputSize = outputSize;
+        }
+
+        /**
+         * Returns {@code true} if the source file was compiled, that is, neither fetched from the cache, nor cancelled.
+         */
+        boolean isCompiled() {
+            return status != null && status != CompileResult.Status.CANCELLED && !cached;
+        }
+
+        void setResult(CompileResult result) {
+            this.status = result.getStatus();
+            this.exitValue = result.getExitValue();
+            this.cached = result.isCached();
+        }
+    }
+}
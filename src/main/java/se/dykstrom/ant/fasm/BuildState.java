@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the state of each destination file, that is, a hash of the contents of all
+ * files that were used to compile it, and a fingerprint of the command line used to compile it.
+ * A destination file only needs to be recompiled if the current state differs from the recorded
+ * state. To avoid hashing unchanged files in every build, the hash of each file is cached together
+ * with the file size and modification time. Failed compilations can be recorded too, with the state
+ * of their inputs and the compiler output, so a failure can be reported again without recompiling,
+ * if nothing has changed. The state can be saved to, and loaded from, a state file.
+ *
+ * @author Johan Dykstrom
+ */
+final class BuildState {
+
+    private static final String HEADER = "# fasm-ant state file";
+    private static final String SEPARATOR = "\t";
+
+    private static final String TYPE_FILE = "F";
+    private static final String TYPE_OUTPUT = "O";
+    private static final String TYPE_FAILURE = "E";
+
+    /** Maps each hashed file to its cached hash. */
+    private final Map<Path, FileHash> fileHashes = new ConcurrentHashMap<>();
+
+    /** Maps each destination file to its recorded state. */
+    private final Map<Path, Entry> outputs = new ConcurrentHashMap<>();
+
+    /** Maps each destination file that failed to compile to the recorded failure. */
+    private final Map<Path, Failure> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new state entry from the given input files and command line.
+     *
+     * @param files The files used to compile the destination file, typically the source file and its dependencies.
+     * @param args The command line used to compile the destination file.
+     * @return The new state entry.
+     * @throws BuildException If any of the files cannot be read.
+     */
+    Entry createEntry(Collection<Path> files, String... args) {
+        String[] hashes = files.stream()
+                .map(file -> file + "=" + getHash(file))
+                .sorted()
+                .toArray(String[]::new);
+        return new Entry(FileUtils.hash(hashes), FileUtils.hash(args));
+    }
+
+    /**
+     * Returns the hash of the given file, reading the file only if it has not been hashed
+     * before, or if it has changed since it was hashed.
+     *
+     * @throws BuildException If the file cannot be read.
+     */
+    String getHash(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+
+            FileHash fileHash = fileHashes.get(file);
+            if (fileHash == null || fileHash.size != size || fileHash.lastModified != lastModified) {
+                fileHash = new FileHash(size, lastModified, FileUtils.hash(file));
+                fileHashes.put(file, fileHash);
+            }
+            return fileHash.hash;
+        } catch (IOException e) {
+            throw new BuildException("Cannot read file '" + file + "'", e);
+        }
+    }
+
+    /**
+     * Returns the recorded state of the given destination file, or {@code null} if there is none.
+     */
+    Entry getOutput(Path destFile) {
+        return outputs.get(destFile.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Records the state of the given destination file.
+     */
+    void putOutput(Path destFile, Entry entry) {
+        outputs.put(destFile.toAbsolutePath().normalize(), entry);
+    }
+
+    /**
+     * Removes the recorded state of the given destination file, forcing it to be recompiled.
+     */
+    void removeOutput(Path destFile) {
+        outputs.remove(destFile.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Returns the recorded failure of the given destination file, or {@code null} if there is none.
+     */
+    Failure getFailure(Path destFile) {
+        return failures.get(destFile.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Records that compiling the given destination file failed, in the given state.
+     */
+    void putFailure(Path destFile, Failure failure) {
+        failures.put(destFile.toAbsolutePath().normalize(), failure);
+    }
+
+    /**
+     * Removes the recorded failure of the given destination file, if any.
+     */
+    void removeFailure(Path destFile) {
+        failures.remove(destFile.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Loads the state from the given state file. If the file does not exist, nothing is loaded.
+     * If the file cannot be parsed, it is ignored, and the state will be built up again.
+     *
+     * @param stateFile The state file to load.
+     * @throws BuildException If the file exists, but cannot be read.
+     */
+    void load(Path stateFile) {
+        if (Files.notExists(stateFile)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length == 5 && TYPE_FILE.equals(fields[0])) {
+                    fileHashes.put(Paths.get(fields[1]), new FileHash(Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+                } else if (fields.length == 4 && TYPE_OUTPUT.equals(fields[0])) {
+                    outputs.put(Paths.get(fields[1]), new Entry(fields[2], fields[3]));
+                } else if (fields.length == 6 && TYPE_FAILURE.equals(fields[0])) {
+                    failures.put(Paths.get(fields[1]), new Failure(new Entry(fields[2], fields[3]), Integer.parseInt(fields[4]), unescape(fields[5])));
+                }
+            }
+        } catch (NumberFormatException e) {
+            fileHashes.clear();
+            outputs.clear();
+            failures.clear();
+        } catch (IOException e) {
+            throw new BuildException("Cannot read state file '" + stateFile + "'", e);
+        }
+    }
+
+    /**
+     * Saves the state to the given state file.
+     *
+     * @param stateFile The state file to save.
+     * @throws BuildException If the file cannot be written.
+     */
+    void save(Path stateFile) {
+        FileUtils.makeDirectory(stateFile.toAbsolutePath());
+
+        try (BufferedWriter writer = Files.newBufferedWriter(stateFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<Path, FileHash> mapEntry : fileHashes.entrySet()) {
+                FileHash fileHash = mapEntry.getValue();
+                writer.write(String.join(SEPARATOR, TYPE_FILE, mapEntry.getKey().toString(),
+                        Long.toString(fileHash.size), Long.toString(fileHash.lastModified), fileHash.hash));
+                writer.newLine();
+            }
+            for (Map.Entry<Path, Entry> mapEntry : outputs.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writer.write(String.join(SEPARATOR, TYPE_OUTPUT, mapEntry.getKey().toString(), entry.inputHash, entry.argsHash));
+                writer.newLine();
+            }
+            for (Map.Entry<Path, Failure> mapEntry : failures.entrySet()) {
+                Failure failure = mapEntry.getValue();
+                writer.write(String.join(SEPARATOR, TYPE_FAILURE, mapEntry.getKey().toString(), failure.entry.inputHash,
+                        failure.entry.argsHash, Integer.toString(failure.exitValue), escape(failure.output)));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Cannot write state file '" + stateFile + "'", e);
+        }
+    }
+
+    /**
+     * Escapes the given compiler output, so it fits in a single field of the state file.
+     */
+    static String escape(String s) {
+        StringBuilder builder = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reverses {@link #escape(String)}.
+     */
+    static String unescape(String s) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                switch (c) {
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    default:
+                        break;
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The recorded state of a destination file.
+     */
+    static final class Entry {
+
+        private final String inputHash;
+        private final String argsHash;
+
+        Entry(String inputHash, String argsHash) {
+            this.inputHash = inputHash;
+            this.argsHash = argsHash;
+        }
+
+        /**
+         * Returns the combined hash of all files used to compile the destination file.
+         */
+        String getInputHash() {
+            return inputHash;
+        }
+
+        /**
+         * Returns the fingerprint of the command line used to compile the destination file.
+         */
+        String getArgsHash() {
+            return argsHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Entry that = (Entry) obj;
+            return inputHash.equals(that.inputHash) && argsHash.equals(that.argsHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(inputHash, argsHash);
+        }
+    }
+
+    /**
+     * A recorded failure to compile a destination file: the state the compilation was made in,
+     * and the exit value and output of the compiler.
+     */
+    static final class Failure {
+
+        private final Entry entry;
+        private final int exitValue;
+        private final String output;
+
+        Failure(Entry entry, int exitValue, String output) {
+            this.entry = entry;
+            this.exitValue = exitValue;
+            this.output = output;
+        }
+
+        /**
+         * Returns the state of the destination file when the compilation failed.
+         */
+        Entry getEntry() {
+            return entry;
+        }
+
+        /**
+         * Returns the exit value of the compiler.
+         */
+        int getExitValue() {
+            return exitValue;
+        }
+
+        /**
+         * Returns the output of the compiler.
+         */
+        String getOutput() {
+            return output;
+        }
+    }
+
+    /**
+     * A cached hash of a file with a certain size and modification time.
+     */
+    private static class FileHash {
+
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        private FileHash(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Schedules compilations on a pool of worker threads. Compilations that have been submitted wait
+ * in a priority queue, and are handed to the worker threads one at a time, as soon as a worker
+ * thread is available. This way, the order in which the compilations start is decided when a
+ * worker thread becomes available, and not when the compilation is submitted. The priority of a
+ * compilation is read once, when it is submitted, so it cannot change while the compilation waits.
+ * Compilations with lower priorities start first, and compilations with equal priorities start in
+ * the order they were submitted.
+ * <p>
+ * If a memory budget is given, a compilation only starts if its estimated memory usage fits in what
+ * is left of the budget. Compilations still start in priority order, so a large compilation is not
+ * starved by smaller ones, and a compilation that needs more than the entire budget starts when no
+ * other compilation is in progress.
+ * <p>
+ * This class is not thread-safe, and must only be used by the task thread.
+ *
+ * @author Johan Dykstrom
+ */
+final class CompileQueue {
+
+    private final int threads;
+    private final long memoryBudget;
+    private final ExecutorService executor;
+    private final CompletionService<CompileResult> completionService;
+    private final ToLongFunction<Path> priority;
+
+    /** The compilations in progress. */
+    private final Map<Future<CompileResult>, Job> running = new HashMap<>();
+
+    /** The compilations waiting for a worker thread. */
+    private final PriorityQueue<Job> waiting;
+
+    private long sequence;
+
+    /** The estimated memory usage of all compilations in progress. */
+    private long memoryInUse;
+
+    /**
+     * Creates a new compile queue.
+     *
+     * @param threads The number of worker threads.
+     * @param threadFactory Creates the worker threads.
+     * @param priority Returns the priority of a compilation, given its source file.
+     */
+    CompileQueue(int threads, ThreadFactory threadFactory, ToLongFunction<Path> priority) {
+        this(threads, threadFactory, priority, 0);
+    }
+
+    /**
+     * Creates a new compile queue with a memory budget.
+     *
+     * @param threads The number of worker threads.
+     * @param threadFactory Creates the worker threads.
+     * @param priority Returns the priority of a compilation, given its source file.
+     * @param memoryBudget The memory budget in kilobytes, or 0 for no budget.
+     */
+    CompileQueue(int threads, ThreadFactory threadFactory, ToLongFunction<Path> priority, long memoryBudget) {
+        this.threads = threads;
+        this.memoryBudget = memoryBudget;
+        this.executor = Executors.newFixedThreadPool(threads, threadFactory);
+        this.completionService = new ExecutorCompletionService<>(executor);
+        this.priority = priority;
+        this.waiting = new PriorityQueue<>(Comparator.<Job>comparingLong(job -> job.priority).thenComparingLong(job -> job.sequence));
+    }
+
+    /**
+     * Submits a compilation of the source and destination files in {@code entry}.
+     */
+    void submit(Map.Entry<Path, Path> entry, Callable<CompileResult> task) {
+        submit(entry, 0, task);
+    }
+
+    /**
+     * Submits a compilation of the source and destination files in {@code entry}, that is estimated
+     * to use {@code memory} kilobytes of the memory budget.
+     */
+    void submit(Map.Entry<Path, Path> entry, long memory, Callable<CompileResult> task) {
+        waiting.add(new Job(entry, task, priority.applyAsLong(entry.getKey()), sequence++, memory));
+        dispatch();
+    }
+
+    /**
+     * Returns the number of compilations in progress or waiting.
+     */
+    int size() {
+        return running.size() + waiting.size();
+    }
+
+    /**
+     * Returns the estimated memory usage in kilobytes of all compilations in progress.
+     */
+    long getMemoryInUse() {
+        return memoryInUse;
+    }
+
+    /**
+     * Returns the result of the next finished compilation, or {@code null} if no compilation has finished.
+     */
+    CompileResult poll() throws InterruptedException, ExecutionException {
+        return complete(completionService.poll());
+    }
+
+    /**
+     * Returns the result of the next finished compilation, waiting at most {@code timeout} nanoseconds
+     * for a compilation to finish. Returns {@code null} if no compilation finished in time.
+     */
+    CompileResult poll(long timeout) throws InterruptedException, ExecutionException {
+        return complete(completionService.poll(timeout, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Returns the result of the next finished compilation, waiting for a compilation to finish if needed.
+     */
+    CompileResult take() throws InterruptedException, ExecutionException {
+        return complete(completionService.take());
+    }
+
+    /**
+     * Cancels all compilations, and waits at most {@code wait} milliseconds for the worker threads
+     * to end. Compilations that finished before they could be cancelled are passed to {@code finished},
+     * so their results are not lost. Returns the source and destination files of all compilations
+     * that did not finish.
+     */
+    List<Map.Entry<Path, Path>> cancel(long wait, Consumer<CompileResult> finished) {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Map.Entry<Path, Path>> cancelled = new ArrayList<>();
+        running.forEach((future, job) -> {
+            CompileResult result = getIfDone(future);
+            if (result != null) {
+                finished.accept(result);
+            } else {
+                cancelled.add(job.entry);
+            }
+        });
+        waiting.forEach(job -> cancelled.add(job.entry));
+        running.clear();
+        waiting.clear();
+        memoryInUse = 0;
+        return cancelled;
+    }
+
+    /**
+     * Shuts down the worker threads, interrupting any compilations still in progress.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Removes the given finished compilation, starts the next waiting compilation, and returns the
+     * result of the finished compilation, or {@code null} if {@code future} is {@code null}.
+     */
+    private CompileResult complete(Future<CompileResult> future) throws InterruptedException, ExecutionException {
+        if (future == null) {
+            return null;
+        }
+        memoryInUse -= running.remove(future).memory;
+        dispatch();
+        return future.get();
+    }
+
+    /**
+     * Returns the result of the given compilation if it has finished normally, and {@code null} otherwise.
+     */
+    private static CompileResult getIfDone(Future<CompileResult> future) {
+        if (!future.isDone() || future.isCancelled()) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts waiting compilations, in priority order, until all worker threads are busy,
+     * or the next compilation does not fit in the memory budget.
+     */
+    private void dispatch() {
+        while (running.size() < threads && !waiting.isEmpty()) {
+            Job job = waiting.peek();
+            if (memoryBudget > 0 && !running.isEmpty() && memoryInUse + job.memory > memoryBudget) {
+                return;
+            }
+            waiting.remove();
+            memoryInUse += job.memory;
+            running.put(completionService.submit(job.task), job);
+        }
+    }
+
+
+    /**
+     * A compilation waiting for a worker thread, or in progress.
+     */
+    private static final class Job {
+
+        private final Map.Entry<Path, Path> entry;
+        private final Callable<CompileResult> task;
+        private final long priority;
+        private final long sequence;
+        private final long memory;
+
+        private Job(Map.Entry<Path, Path> entry, Callable<CompileResult> task, long priority, long sequence, long memory) {
+            this.entry = entry;
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.memory = memory;
+        }
+    }
+}
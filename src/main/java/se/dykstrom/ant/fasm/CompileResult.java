@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * The result of compiling a single source file. Compile results are created by the worker
+ * threads, and reported by the task thread, so that the output of each file is logged in
+ * one piece.
+ *
+ * @author Johan Dykstrom
+ */
+final class CompileResult {
+
+    /**
+     * The possible outcomes of compiling a source file.
+     */
+    enum Status {
+        /** The source file was compiled successfully. */
+        SUCCESS,
+        /** The compiler reported an error. */
+        FAILURE,
+        /** The compiler did not finish in time, and was killed. */
+        TIMEOUT,
+        /** The compilation was cancelled, because another compilation failed. */
+        CANCELLED
+    }
+
+    private final Path srcFile;
+    private final Path destFile;
+    private final Status status;
+    private final int exitValue;
+    private final ProcessOutput output;
+    private final boolean cached;
+    private final long duration;
+    private final long memory;
+
+    CompileResult(Path srcFile, Path destFile, int exitValue, ProcessOutput output) {
+        this(srcFile, destFile, exitValue, output, 0);
+    }
+
+    CompileResult(Path srcFile, Path destFile, int exitValue, ProcessOutput output, long duration) {
+        this(srcFile, destFile, exitValue, output, duration, 0);
+    }
+
+    CompileResult(Path srcFile, Path destFile, int exitValue, ProcessOutput output, long duration, long memory) {
+        this(srcFile, destFile, (exitValue == 0) ? Status.SUCCESS : Status.FAILURE, exitValue, output, false, duration, memory);
+    }
+
+    CompileResult(Path srcFile, Path destFile, Status status, int exitValue, ProcessOutput output, boolean cached) {
+        this(srcFile, destFile, status, exitValue, output, cached, 0);
+    }
+
+    CompileResult(Path srcFile, Path destFile, Status status, int exitValue, ProcessOutput output, boolean cached, long duration) {
+        this(srcFile, destFile, status, exitValue, output, cached, duration, 0);
+    }
+
+    CompileResult(Path srcFile, Path destFile, Status status, int exitValue, ProcessOutput output, boolean cached, long duration, long memory) {
+        this.srcFile = srcFile;
+        this.destFile = destFile;
+        this.status = status;
+        this.exitValue = exitValue;
+        this.output = output;
+        this.cached = cached;
+        this.duration = duration;
+        this.memory = memory;
+    }
+
+    /**
+     * Returns the source file that was compiled.
+     */
+    Path getSrcFile() {
+        return srcFile;
+    }
+
+    /**
+     * Returns the destination file that was created.
+     */
+    Path getDestFile() {
+        return destFile;
+    }
+
+    /**
+     * Returns the outcome of the compilation.
+     */
+    Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the exit value of the compile process, or -1 if the process did not end in time.
+     */
+    int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * Passes each line of output of the compile process to the given consumer, or nothing,
+     * if there is no output.
+     *
+     * @throws IOException If the output cannot be read back from disk.
+     */
+    void forEachOutputLine(Consumer<String> consumer) throws IOException {
+        if (output != null) {
+            output.forEachLine(consumer);
+        }
+    }
+
+    /**
+     * Releases any resources held by the output of the compile process.
+     */
+    void close() throws IOException {
+        if (output != null) {
+            output.close();
+        }
+    }
+
+    /**
+     * Returns the time in nanoseconds the compile process ran, or 0 if no compile process was run to completion.
+     */
+    long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the memory in kilobytes the compiler reported that it used, or 0 if not known.
+     */
+    long getMemory() {
+        return memory;
+    }
+
+    /**
+     * Returns {@code true} if the destination file was fetched from the artifact cache.
+     */
+    boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * Returns {@code true} if the compilation was successful.
+     */
+    boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps track of the files that each source file depends on, that is, the files referenced
+ * by {@code include} and {@code file} directives, and the format of each source file. The
+ * directly referenced files and the format are cached per file, together with the file size
+ * and modification time, and the cache can be saved to, and loaded from, a dependency file.
+ * This way, only files that have changed since the last build need to be read again. The exact
+ * input files of a source file, as reported by fasm itself, can also be recorded, and are then
+ * used instead of the files found by parsing.
+ *
+ * @author Johan Dykstrom
+ */
+final class DependencyGraph {
+
+    private static final Pattern PATTERN_INCLUDE = Pattern.compile("^\\s*include\\s+(['\"])(.+?)\\1", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PATTERN_FILE = Pattern.compile("(?:^|\\s)file\\s+(['\"])(.+?)\\1", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PATTERN_VARIABLE = Pattern.compile("%([^%]+)%");
+
+    private static final String HEADER = "# fasm-ant dependency file";
+    private static final String SEPARATOR = "\t";
+    private static final String UNKNOWN = "?";
+
+    /** Marks a line in the dependency file that holds the exact input files of a source file. */
+    private static final String TYPE_INPUTS = ">";
+
+    /** Directories to search for referenced files, in addition to the directory of the referencing file. */
+    private final List<Path> includePaths;
+
+    /** Maps each parsed file to its cache entry. */
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /** The current build generation, or 0 if files must be checked every time they are used. */
+    private volatile long generation;
+
+    /** Incremented whenever resolved references may have become invalid. */
+    private final AtomicLong resolution = new AtomicLong();
+
+    /** Maps each source file to the exact set of files read when it was last compiled, if known. */
+    private final Map<Path, Set<Path>> inputs = new ConcurrentHashMap<>();
+
+    /** The filenames of all references that could not be resolved. */
+    private final Set<String> unresolved = ConcurrentHashMap.newKeySet();
+
+    DependencyGraph(List<Path> includePaths) {
+        this.includePaths = includePaths;
+    }
+
+    /**
+     * Returns the include paths specified by the given value of the INCLUDE environment variable.
+     * Like fasm itself, this method accepts paths separated by semicolons.
+     *
+     * @param include The value of the INCLUDE environment variable, or {@code null} if not set.
+     * @return The list of include paths.
+     */
+    static List<Path> getIncludePaths(String include) {
+        if (include == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(include.split(";|" + Pattern.quote(File.pathSeparator)))
+                .map(String::trim)
+                .filter(path -> !path.isEmpty())
+                .map(Paths::get)
+                .collect(toList());
+    }
+
+    /**
+     * Starts a new build. Files are assumed not to change during a build, so each file is only
+     * checked for changes, and each reference is only resolved, once per build, no matter how
+     * many source files include it. Before the first build is started, files are checked every
+     * time they are used.
+     */
+    void beginBuild() {
+        generation++;
+        resolution.incrementAndGet();
+    }
+
+    /**
+     * Tells the graph that the given file has been written during the current build. The file is
+     * checked for changes again the next time it is used, and if it may be the target of a reference
+     * that could not be resolved before, all references are resolved again.
+     *
+     * @param file The file that has been written.
+     */
+    void invalidate(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            entry.checkedGeneration = 0;
+        }
+        if (unresolved.contains(path.getFileName().toString())) {
+            resolution.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the set of all files that {@code srcFile} depends on, directly or indirectly,
+     * including {@code srcFile} itself. Referenced files that cannot be found are not included.
+     * If the exact input files of the source file are known, and all of them still exist, they are
+     * returned instead of the dependencies found by parsing the source file.
+     *
+     * @param srcFile The source file.
+     * @return The transitive closure of the dependencies of the source file.
+     * @throws BuildException If any of the files cannot be read.
+     */
+    Set<Path> getDependencies(Path srcFile) {
+        return getDependencies(srcFile, true);
+    }
+
+    /**
+     * Returns the set of all files that {@code srcFile} depends on, like {@link #getDependencies(Path)},
+     * but only uses the exact input files of the source file if {@code useInputs} is {@code true}.
+     * The graph may be shared by tasks that do, and do not, record exact input files.
+     */
+    Set<Path> getDependencies(Path srcFile, boolean useInputs) {
+        Path start = srcFile.toAbsolutePath().normalize();
+        Set<Path> exact = useInputs ? inputs.get(start) : null;
+        if (exact != null) {
+            if (exact.stream().allMatch(this::exists)) {
+                return exact;
+            }
+            // An input file has been removed, so the source file must have changed too
+            inputs.remove(start);
+        }
+
+        Set<Path> visited = new LinkedHashSet<>();
+        Deque<Path> queue = new ArrayDeque<>();
+        queue.add(start);
+
+        while (!queue.isEmpty()) {
+            Path file = queue.remove();
+            if (visited.add(file)) {
+                for (Path resolved : getResolvedReferences(file)) {
+                    if (!visited.contains(resolved)) {
+                        queue.add(resolved);
+                    }
+                }
+            }
+        }
+
+        return visited;
+    }
+
+    /**
+     * Records the exact input files of the given source file, as found in the symbolic information
+     * file written when compiling it. The references of {@code file} directives are resolved like
+     * fasm does, against the directory of the source file they were found in, and the include paths.
+     *
+     * @param srcFile The source file.
+     * @param symbolFile The symbolic information file written when compiling the source file.
+     */
+    void putInputs(Path srcFile, SymbolFile symbolFile) {
+        Path start = srcFile.toAbsolutePath().normalize();
+        Set<Path> files = new LinkedHashSet<>();
+        files.add(start);
+        symbolFile.getSourceFiles().forEach(file -> files.add(file.toAbsolutePath().normalize()));
+        for (SymbolFile.FileReference reference : symbolFile.getFileReferences()) {
+            Path resolved = resolve(reference.getSourceFile().toAbsolutePath().normalize(), reference.getReference());
+            if (resolved != null) {
+                files.add(resolved);
+            }
+        }
+        inputs.put(start, Collections.unmodifiableSet(files));
+    }
+
+    /**
+     * Forgets the exact input files of the given source file, if any.
+     */
+    void removeInputs(Path srcFile) {
+        inputs.remove(srcFile.toAbsolutePath().normalize());
+    }
+
+
+    /**
+     * Returns {@code true} if the given file exists, checking it only once per build.
+     */
+    private boolean exists(Path file) {
+        try {
+            getEntry(file, null);
+            return true;
+        } catch (BuildException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the format of the given source file, scanning at most {@code scanLimit} bytes
+     * of the file if the format has not been detected before, or if the file has changed
+     * since it was detected.
+     *
+     * @param srcFile The source file.
+     * @param scanLimit The maximum number of bytes to scan, or 0 to scan the entire file.
+     * @return The format of the source file.
+     * @throws BuildException If the file cannot be read.
+     */
+    String getFormat(Path srcFile, long scanLimit) {
+        return getFormat(srcFile, null, scanLimit);
+    }
+
+    /**
+     * Returns the format of the given source file, like {@link #getFormat(Path, long)}, but uses
+     * the given file attributes, if not {@code null}, instead of reading them again.
+     *
+     * @param srcFile The source file.
+     * @param attributes The attributes of the source file, or {@code null} if not known.
+     * @param scanLimit The maximum number of bytes to scan, or 0 to scan the entire file.
+     * @return The format of the source file.
+     * @throws BuildException If the file cannot be read.
+     */
+    String getFormat(Path srcFile, BasicFileAttributes attributes, long scanLimit) {
+        Path file = srcFile.toAbsolutePath().normalize();
+        Entry entry = getEntry(file, attributes);
+        if (entry.format == null) {
+            try {
+                entry.format = FormatUtils.getFormat(file, scanLimit);
+            } catch (IOException e) {
+                throw new BuildException("Cannot read source file '" + file + "'", e);
+            }
+        }
+        return entry.format;
+    }
+
+    /**
+     * Returns the last modification time of the given file, as read when the file was last checked
+     * for changes.
+     *
+     * @param file The file.
+     * @return The last modification time of the file.
+     * @throws BuildException If the file cannot be read.
+     */
+    FileTime getLastModifiedTime(Path file) {
+        return getEntry(file.toAbsolutePath().normalize(), null).lastModifiedTime;
+    }
+
+    /**
+     * Returns the files referenced in the given file that can be found, resolving the references
+     * if they have not been resolved before in this build.
+     */
+    private List<Path> getResolvedReferences(Path file) {
+        Entry entry = getEntry(file, null);
+        List<Path> resolved = entry.resolved;
+        long currentResolution = resolution.get();
+        if (resolved == null || entry.resolvedGeneration != currentResolution || generation == 0) {
+            resolved = new ArrayList<>();
+            for (String reference : getReferences(file, entry)) {
+                Path path = resolve(file, reference);
+                if (path != null) {
+                    resolved.add(path);
+                }
+            }
+            entry.resolved = resolved;
+            entry.resolvedGeneration = currentResolution;
+        }
+        return resolved;
+    }
+
+    /**
+     * Returns the references found in the given file, parsing the file if it has not been
+     * parsed before, or if it has changed since it was parsed.
+     */
+    private List<String> getReferences(Path file, Entry entry) {
+        if (entry.references == null) {
+            try {
+                entry.references = parseReferences(file);
+            } catch (IOException e) {
+                throw new BuildException("Cannot read source file '" + file + "'", e);
+            }
+        }
+        return entry.references;
+    }
+
+    /**
+     * Returns the cache entry for the given file. If there is no entry, or if the file has
+     * changed since the entry was created, a new, empty entry is created. The file is only
+     * checked for changes once per build, using the given attributes if not {@code null}.
+     */
+    private Entry getEntry(Path file, BasicFileAttributes attributes) {
+        Entry entry = entries.get(file);
+        if (entry != null && generation != 0 && entry.checkedGeneration == generation) {
+            return entry;
+        }
+
+        try {
+            if (attributes == null) {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+
+            if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+                entry = new Entry(size, lastModified, null, null);
+                entries.put(file, entry);
+            }
+            entry.lastModifiedTime = attributes.lastModifiedTime();
+            entry.checkedGeneration = generation;
+            return entry;
+        } catch (IOException e) {
+            throw new BuildException("Cannot read source file '" + file + "'", e);
+        }
+    }
+
+    /**
+     * Parses the given file, and returns the files referenced by include and file directives,
+     * as they are written in the file.
+     */
+    private static List<String> parseReferences(Path file) throws IOException {
+        List<String> references = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                references.addAll(getReferences(line));
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Returns the files referenced by include and file directives in the given line.
+     * Comments are ignored.
+     *
+     * @param line A line of assembly code.
+     * @return The list of referenced files, as they are written in the line.
+     */
+    static List<String> getReferences(String line) {
+        String code = stripComment(line);
+        if (code.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<String> references = new ArrayList<>();
+        Matcher matcher = PATTERN_INCLUDE.matcher(code);
+        if (matcher.find()) {
+            references.add(matcher.group(2));
+        }
+        matcher = PATTERN_FILE.matcher(code);
+        while (matcher.find()) {
+            references.add(matcher.group(2));
+        }
+        return references;
+    }
+
+    /**
+     * Removes any comment from the given line. Semicolons inside quoted strings are not
+     * considered to start a comment.
+     */
+    private static String stripComment(String line) {
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Resolves the given reference, found in {@code file}, against the directory of the file,
+     * and then against the include paths. Environment variables written as %NAME% are expanded.
+     *
+     * @return The resolved path, or {@code null} if the referenced file cannot be found.
+     */
+    private Path resolve(Path file, String reference) {
+        Path path = Paths.get(expandVariables(reference).replace('\\', '/'));
+        if (path.isAbsolute()) {
+            if (Files.isRegularFile(path)) {
+                return path.normalize();
+            }
+            addUnresolved(path);
+            return null;
+        }
+
+        Path directory = file.getParent();
+        if (directory != null && Files.isRegularFile(directory.resolve(path))) {
+            return directory.resolve(path).normalize();
+        }
+        for (Path includePath : includePaths) {
+            Path candidate = includePath.resolve(path);
+            if (Files.isRegularFile(candidate)) {
+                return candidate.toAbsolutePath().normalize();
+            }
+        }
+        addUnresolved(path);
+        return null;
+    }
+
+    private void addUnresolved(Path path) {
+        Path fileName = path.getFileName();
+        if (fileName != null) {
+            unresolved.add(fileName.toString());
+        }
+    }
+
+    /**
+     * Expands all environment variables written as %NAME% in the given string.
+     * Undefined variables are left as they are.
+     */
+    private static String expandVariables(String s) {
+        Matcher matcher = PATTERN_VARIABLE.matcher(s);
+        StringBuffer buffer = new StringBuffer();
+        while (matcher.find()) {
+            String value = System.getenv(matcher.group(1));
+            matcher.appendReplacement(buffer, Matcher.quoteReplacement(value != null ? value : matcher.group()));
+        }
+        matcher.appendTail(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Loads the cached dependencies and formats from the given dependency file. If the file does
+     * not exist, nothing is loaded. If the file cannot be parsed, it is ignored, and all files will
+     * be read again.
+     *
+     * @param depFile The dependency file to load.
+     * @throws BuildException If the file exists, but cannot be read.
+     */
+    void load(Path depFile) {
+        if (Files.notExists(depFile)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(depFile, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length >= 2 && TYPE_INPUTS.equals(fields[0])) {
+                    Set<Path> files = new LinkedHashSet<>();
+                    for (int i = 1; i < fields.length; i++) {
+                        files.add(Paths.get(fields[i]));
+                    }
+                    inputs.put(Paths.get(fields[1]), Collections.unmodifiableSet(files));
+                } else if (fields.length >= 5) {
+                    String format = UNKNOWN.equals(fields[3]) ? null : fields[3];
+                    List<String> references = UNKNOWN.equals(fields[4]) ? null : Arrays.asList(Arrays.copyOfRange(fields, 5, fields.length));
+                    entries.put(Paths.get(fields[0]), new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), format, references));
+                }
+            }
+        } catch (NumberFormatException e) {
+            entries.clear();
+            inputs.clear();
+        } catch (IOException e) {
+            throw new BuildException("Cannot read dependency file '" + depFile + "'", e);
+        }
+    }
+
+    /**
+     * Saves the cached dependencies and formats to the given dependency file.
+     *
+     * @param depFile The dependency file to save.
+     * @throws BuildException If the file cannot be written.
+     */
+    void save(Path depFile) {
+        FileUtils.makeDirectory(depFile.toAbsolutePath());
+
+        try (BufferedWriter writer = Files.newBufferedWriter(depFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<Path, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                List<String> references = entry.references;
+                writer.write(mapEntry.getKey() + SEPARATOR + entry.size + SEPARATOR + entry.lastModified);
+                writer.write(SEPARATOR + (entry.format != null ? entry.format : UNKNOWN));
+                writer.write(SEPARATOR + (references != null ? Integer.toString(references.size()) : UNKNOWN));
+                if (references != null) {
+                    for (String reference : references) {
+                        writer.write(SEPARATOR + reference);
+                    }
+                }
+                writer.newLine();
+            }
+            for (Set<Path> files : inputs.values()) {
+                writer.write(TYPE_INPUTS);
+                for (Path file : files) {
+                    writer.write(SEPARATOR + file);
+                }
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Cannot write dependency file '" + depFile + "'", e);
+        }
+    }
+
+    /**
+     * A cache entry, holding the format and the references found in a file with a certain size
+     * and modification time. The format and references are {@code null} until they are known.
+     * The exact modification time, and the resolved references, are only valid in the build
+     * in which they were read.
+     */
+    private static class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private volatile String format;
+        private volatile List<String> references;
+        private volatile FileTime lastModifiedTime;
+        private volatile long checkedGeneration;
+        private volatile List<Path> resolved;
+        private volatile long resolvedGeneration;
+
+        private Entry(long size, long lastModified, String format, List<String> references) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.format = format;
+            this.references = references;
+        }
+    }
+}
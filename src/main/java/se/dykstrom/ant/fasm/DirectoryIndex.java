@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An index of directory listings. Instead of reading the attributes of each file separately, each
+ * directory is listed once, and the attributes of all files in the directory are kept in the index.
+ * The index is used to check destination files, and, if shared between tasks, to scan source
+ * directories. A bounded index keeps only the most recently used directories.
+ *
+ * @author Johan Dykstrom
+ */
+final class DirectoryIndex {
+
+    /** The default maximum number of directories to keep in a bounded index. */
+    static final int DEFAULT_MAX_DIRECTORIES = 64;
+
+    /** Marks a directory that does not exist. */
+    private static final Map<String, BasicFileAttributes> MISSING = Collections.emptyMap();
+
+    private final Map<Path, Map<String, BasicFileAttributes>> listings;
+
+    private int listed;
+
+    /**
+     * Creates a new index that keeps at most {@link #DEFAULT_MAX_DIRECTORIES} directories.
+     */
+    DirectoryIndex() {
+        this(DEFAULT_MAX_DIRECTORIES);
+    }
+
+    /**
+     * Creates a new index that keeps at most {@code maxDirectories} directories.
+     */
+    DirectoryIndex(int maxDirectories) {
+        this.listings = new LinkedHashMap<Path, Map<String, BasicFileAttributes>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Map<String, BasicFileAttributes>> eldest) {
+                return size() > maxDirectories;
+            }
+        };
+    }
+
+    /**
+     * Returns the attributes of all files in the given directory, sorted by name, or an empty
+     * map if the directory does not exist. Symbolic links are followed.
+     *
+     * @param directory The directory to list.
+     * @return The attributes of all files in the directory, by name.
+     * @throws BuildException If the directory cannot be listed.
+     */
+    synchronized Map<String, BasicFileAttributes> list(Path directory) {
+        return Collections.unmodifiableMap(getListing(directory.toAbsolutePath()));
+    }
+
+    /**
+     * Returns the last modification time of the given file, or {@code null} if it does not exist.
+     *
+     * @param file The file.
+     * @return The last modification time of the file, or {@code null} if it does not exist.
+     * @throws BuildException If the directory of the file cannot be listed.
+     */
+    synchronized FileTime getLastModifiedTime(Path file) {
+        BasicFileAttributes attributes = getListing(file.toAbsolutePath().getParent()).get(file.getFileName().toString());
+        return (attributes != null) ? attributes.lastModifiedTime() : null;
+    }
+
+    /**
+     * Creates the directory of the given file, if the index does not know it exists already.
+     *
+     * @param file The file to create a directory for.
+     * @throws BuildException If the directory could not be created.
+     */
+    synchronized void makeDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        if (getListing(directory) == MISSING) {
+            FileUtils.makeDirectory(file.toAbsolutePath());
+            listings.put(directory, new TreeMap<>());
+        }
+    }
+
+    /**
+     * Updates the index after the given file has been written, or deleted. Only the given file is
+     * read again, not the entire directory.
+     *
+     * @param file The file that has changed.
+     * @throws BuildException If the attributes of the file cannot be read.
+     */
+    synchronized void update(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        Map<String, BasicFileAttributes> listing = listings.get(directory);
+        if (listing == null) {
+            return;
+        }
+        if (listing == MISSING) {
+            listings.remove(directory);
+            return;
+        }
+        String name = file.getFileName().toString();
+        try {
+            listing.put(name, Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            listing.remove(name);
+        } catch (IOException e) {
+            throw new BuildException("Cannot read attributes of file '" + file + "'", e);
+        }
+    }
+
+    /**
+     * Returns the number of directory listings made so far.
+     */
+    synchronized int getListed() {
+        return listed;
+    }
+
+    /**
+     * Returns the listing of the given absolute directory, listing it if not already in the index.
+     */
+    private Map<String, BasicFileAttributes> getListing(Path directory) {
+        Map<String, BasicFileAttributes> listing = listings.get(directory);
+        if (listing == null) {
+            listing = read(directory);
+            listings.put(directory, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * Lists the given directory, and returns the attributes of all files in it.
+     */
+    private Map<String, BasicFileAttributes> read(Path directory) {
+        listed++;
+        if (!Files.isDirectory(directory)) {
+            return MISSING;
+        }
+        Map<String, BasicFileAttributes> listing = new TreeMap<>();
+        try {
+            Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    listing.put(file.getFileName().toString(), attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Skip files that cannot be read, for example broken symbolic links
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new BuildException("Cannot list directory '" + directory + "'", e);
+        }
+        return listing;
+    }
+}
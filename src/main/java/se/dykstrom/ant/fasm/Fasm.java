@@ -17,27 +17,59 @@
 package se.dykstrom.ant.fasm;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.MatchingTask;
 import org.apache.tools.ant.types.PatternSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
-import static java.util.stream.Collectors.toMap;
 
 /**
  * Compiles an assembly code source tree using the <a href="http://flatassembler.net">flat assembler</a>.
  * The source and destination directory will be recursively scanned for assembly source files to compile.
  * Only source files that have no corresponding output file, or where the output file is older than the
- * source file will be compiled.
+ * source file, or any file included by the source file, will be compiled. If a state file is configured,
+ * a source file will instead be compiled if the contents of the source file, or any file included by the
+ * source file, or the compiler command line, have changed since the output file was compiled.
+ * <p>
+ * Source files are compiled in parallel, using a configurable number of worker threads, as soon as they
+ * are found by the scan. Compilations can also be sent to remote workers, and a build can be split into
+ * shards, or compiled in several variants. The timing and outcome of each source file can be written to
+ * a JSON report file.
  *
  * @author Johan Dykstrom
  */
@@ -48,18 +80,66 @@ public class Fasm extends MatchingTask {
 
     private static final String DEFAULT_INCLUDES = "**/*.asm";
 
+    private static final String SCANNER_ANT = "ant";
+    private static final String SCANNER_NIO = "nio";
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /** The maximum number of compilations in progress or waiting for each worker thread. */
+    private static final int MAX_OUTSTANDING_PER_THREAD = 4;
+
+    /**
+     * The maximum number of compilations in progress or waiting if scheduling by history. A waiting
+     * compilation uses little memory, so more compilations can be ordered by history before they start.
+     */
+    private static final int MAX_OUTSTANDING_WITH_HISTORY = 1024;
+
+    /** The estimated memory usage in kilobytes of a compilation, if nothing better is known. */
+    private static final long DEFAULT_MEMORY_ESTIMATE = 16384;
+
+    /** Matches the memory usage that fasm prints on its first line of output. */
+    private static final Pattern PATTERN_MEMORY = Pattern.compile("\\((\\d+) kilobytes memory\\)");
+
+    /** The maximum time in milliseconds to wait for cancelled compilations to end. */
+    private static final long CANCEL_WAIT = 10000;
+
     // Task attributes
+    private String cacheDir;
+    private boolean cacheFailures;
+    private String cacheRef;
+    private long cacheSize = 1024;
     private String compiler = "fasm";
+    private String depFile;
     private String destDir;
     private String errorProperty;
+    private boolean exactDeps;
+    private boolean failFast;
     private boolean failOnError = true;
+    private String historyFile;
+    private boolean jobServer;
     private Integer memory;
+    private long memoryBudget;
     private Integer passes;
+    private String reportFile;
+    private long scanLimit = 1024 * 1024;
+    private String scanner = SCANNER_ANT;
+    private String shard;
     private String srcDir;
+    private String stateFile;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long timeout;
+    private long totalTimeout;
     private String updatedProperty;
+    private boolean watch;
+    private long watchDelay = 200;
+    private String workers;
 
     // Nested elements
     private final List<CompilerArg> compilerArgs = new ArrayList<>();
+    private final List<Variant> variants = new ArrayList<>();
+
+    /** The variants to build, with the defaults taken from the task attributes filled in. */
+    private List<Variant> targets;
 
     /** Set to true if there are errors. */
     private boolean errors;
@@ -67,9 +147,54 @@ public class Fasm extends MatchingTask {
     /** Set to true if any file has been updated (compiled). */
     private boolean updated;
 
+    /** The number of compile results reported, not counting cancelled compilations. */
+    private int compiled;
+
+    /** All source files found, relative the source directory, or null if not in watch mode. */
+    private Set<String> sources;
+
     /** Keeps track of any include(s) configurations. */
     private boolean includeConfigured;
 
+    /** Keeps track of the files included by each source file. */
+    private DependencyGraph graph;
+
+    /** Keeps track of the state of each destination file, or null if no state file is configured. */
+    private BuildState state;
+
+    /** Maps each destination file that is about to be compiled to the name of its variant, if it has one. */
+    private final Map<Path, String> variantNames = new HashMap<>();
+
+    /** Maps each destination file that is about to be compiled to its new state. */
+    private final Map<Path, BuildState.Entry> pendingStates = new ConcurrentHashMap<>();
+
+    /** The shared artifact cache, or null if no cache directory is configured. */
+    private ArtifactCache artifactCache;
+
+    /** Keeps track of the outcome and duration of each compilation, or null if no history file is configured. */
+    private BuildHistory history;
+
+    /** Identifies the compiler binary and version, if an artifact cache is used. */
+    private String compilerId;
+
+    /** The scan and metadata cache shared with other tasks, or null if no cache reference is configured. */
+    private FasmCache fasmCache;
+
+    /** Lists the destination directories in bulk, or null if not using the NIO scanner or a shared cache. */
+    private DirectoryIndex directoryIndex;
+
+    /** The shard of the source files to compile, or null if all source files should be compiled. */
+    private Shard buildShard;
+
+    /** Hands out the local and remote compile slots, or null if no workers are configured. */
+    private WorkerPool workerPool;
+
+    /** Limits the number of compile processes across tasks, or null if not configured. */
+    private JobServer jobSlots;
+
+    /** Collects timing and outcome information for each source file, or null if no report file is configured. */
+    private BuildReport report;
+
     @Override
     public void setIncludes(String includes) {
         includeConfigured = true;
@@ -82,6 +207,36 @@ public class Fasm extends MatchingTask {
         return super.createInclude();
     }
 
+    /**
+     * Sets the optional cache directory attribute.
+     */
+    public void setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Sets the optional "cache failures" attribute. If true, failed compilations are recorded in the
+     * state file, and reported again without recompiling, as long as nothing that affects them changes.
+     */
+    public void setCacheFailures(boolean cacheFailures) {
+        this.cacheFailures = cacheFailures;
+    }
+
+    /**
+     * Sets the optional cache reference attribute, that is, the id of a project reference that holds
+     * a scan and metadata cache shared by all fasm tasks that use the same id.
+     */
+    public void setCacheRef(String cacheRef) {
+        this.cacheRef = cacheRef;
+    }
+
+    /**
+     * Sets the optional cache size attribute, in megabytes.
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
     /**
      * Sets the optional compiler attribute.
      */
@@ -89,6 +244,13 @@ public class Fasm extends MatchingTask {
         this.compiler = compiler;
     }
 
+    /**
+     * Sets the optional dependency file attribute.
+     */
+    public void setDepFile(String depFile) {
+        this.depFile = depFile;
+    }
+
     /**
      * Sets the optional destination directory attribute.
      */
@@ -103,6 +265,21 @@ public class Fasm extends MatchingTask {
         this.errorProperty = errorProperty;
     }
 
+    /**
+     * Sets the optional "exact dependencies" attribute. If true, the exact input files of each source file
+     * are read from the symbolic information file written by fasm, and used in the next up-to-date check.
+     */
+    public void setExactDeps(boolean exactDeps) {
+        this.exactDeps = exactDeps;
+    }
+
+    /**
+     * Sets the optional "fail fast" attribute. If true, all compilations are cancelled as soon as one fails.
+     */
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
     /**
      * Sets the optional "fail on error" attribute.
      */
@@ -110,6 +287,21 @@ public class Fasm extends MatchingTask {
         this.failOnError = failOnError;
     }
 
+    /**
+     * Sets the optional history file attribute.
+     */
+    public void setHistoryFile(String historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * Sets the optional jobserver attribute. If true, compile processes share job slots with GNU make,
+     * if the build runs under a make jobserver, or otherwise with all other tasks in the JVM.
+     */
+    public void setJobServer(boolean jobServer) {
+        this.jobServer = jobServer;
+    }
+
     /**
      * Sets the optional memory attribute.
      */
@@ -117,6 +309,14 @@ public class Fasm extends MatchingTask {
         this.memory = memory;
     }
 
+    /**
+     * Sets the optional "memory budget" attribute. If greater than 0, compilations only start if
+     * their estimated memory usage fits in what is left of the budget, in kilobytes.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
     /**
      * Sets the optional passes attribute.
      */
@@ -124,6 +324,35 @@ public class Fasm extends MatchingTask {
         this.passes = passes;
     }
 
+    /**
+     * Sets the optional report file attribute.
+     */
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Sets the optional scan limit attribute, in bytes.
+     */
+    public void setScanLimit(long scanLimit) {
+        this.scanLimit = scanLimit;
+    }
+
+    /**
+     * Sets the optional scanner attribute, that is, "ant" or "nio".
+     */
+    public void setScanner(String scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * Sets the optional shard attribute, on the form "i/n", that is, compile only the i:th of n shards
+     * of the included source files.
+     */
+    public void setShard(String shard) {
+        this.shard = shard;
+    }
+
     /**
      * Sets the mandatory source directory attribute.
      */
@@ -131,6 +360,34 @@ public class Fasm extends MatchingTask {
         this.srcDir = srcDir;
     }
 
+    /**
+     * Sets the optional state file attribute.
+     */
+    public void setStateFile(String stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Sets the optional threads attribute.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the optional timeout attribute, in milliseconds per source file.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the optional total timeout attribute, in milliseconds for all source files.
+     */
+    public void setTotalTimeout(long totalTimeout) {
+        this.totalTimeout = totalTimeout;
+    }
+
     /**
      * Sets the optional "updated property" attribute.
      */
@@ -138,6 +395,30 @@ public class Fasm extends MatchingTask {
         this.updatedProperty = updatedProperty;
     }
 
+    /**
+     * Sets the optional watch attribute. If true, the task keeps running after the first build,
+     * and compiles the affected source files whenever any source or include file changes.
+     */
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    /**
+     * Sets the optional watch delay attribute, that is, the time in milliseconds without changes
+     * to wait for, before compiling the changed files.
+     */
+    public void setWatchDelay(long watchDelay) {
+        this.watchDelay = watchDelay;
+    }
+
+    /**
+     * Sets the optional workers attribute, that is, a comma-separated list of remote workers,
+     * on the form "host:port", to compile on in addition to the local threads.
+     */
+    public void setWorkers(String workers) {
+        this.workers = workers;
+    }
+
     /**
      * Adds a nested compiler argument.
      */
@@ -145,30 +426,240 @@ public class Fasm extends MatchingTask {
         compilerArgs.add(compilerArg);
     }
 
+    /**
+     * Adds a nested build variant.
+     */
+    public void addConfiguredVariant(Variant variant) {
+        variants.add(variant);
+    }
+
     @Override
     public void execute() throws BuildException {
+        report = (reportFile != null) ? new BuildReport() : null;
         setUp();
 
-        List<String> includedFiles = getIncludedFiles(srcDir);
+        SourceScanner scanner = getSourceScanner(srcDir);
+        compileAll((buildShard != null) ? getShardSources(scanner) : scanner);
 
-        // Map source filename (including path) to destination filename (including path)
-        Map<Path, Path> map = includedFiles.stream().collect(toMap(this::toSrcPath, this::toDestPath));
+        saveState();
+        if (artifactCache != null) {
+            artifactCache.evict();
+            log("Artifact cache: " + artifactCache.getHits() + " hit(s), " + artifactCache.getMisses() + " miss(es)", Project.MSG_INFO);
+        }
+        if (report != null) {
+            report.stop();
+            report.save(Paths.get(reportFile));
+            report = null;
+        }
+        if (watch) {
+            watch(scanner);
+        }
+        tearDown();
+    }
 
-        // Make sure all destination directories exist
-        map.values().forEach(FileUtils::makeDirectory);
+    /**
+     * Watches the source directory, the include paths, and the directories of all included files for
+     * changes, and compiles the source files affected by each burst of changes, until interrupted.
+     * The affected source files are the changed source files, and all source files that include a
+     * changed file, directly or indirectly. Compile errors are reported, but do not stop watching.
+     */
+    private void watch(SourceScanner scanner) {
+        Path srcPath = Paths.get(srcDir).toAbsolutePath().normalize();
+        // Maps each file to the source files that depend on it; an edge is never removed, so a
+        // source file may be checked in vain, but an affected source file is never missed
+        Map<Path, Set<String>> dependents = new HashMap<>();
+        try (Watcher watcher = new Watcher()) {
+            watcher.registerTree(srcPath);
+            for (Path includePath : DependencyGraph.getIncludePaths(System.getenv("INCLUDE"))) {
+                watcher.register(includePath);
+            }
+            addDependents(watcher, dependents, sources);
+            log("Watching " + srcPath + " for changes", Project.MSG_INFO);
 
-        // Find out the source files to compile, and compile them
-        map.entrySet().stream()
-                .filter(entry -> FileUtils.needsRecompilation(entry.getKey(), entry.getValue()))
-                .forEach(this::compile);
+            while (true) {
+                Set<Path> changed = watcher.awaitChanges(watchDelay);
+                errors = false;
+                compiled = 0;
+                try {
+                    graph.beginBuild();
+                    if (fasmCache != null) {
+                        changed.forEach(fasmCache::update);
+                    } else if (directoryIndex != null) {
+                        directoryIndex = new DirectoryIndex();
+                    }
 
-        tearDown();
+                    Set<String> affected;
+                    if (watcher.isOverflow()) {
+                        // Some changes were lost, so scan the entire source directory again
+                        log("Too many changes, scanning " + srcPath, Project.MSG_VERBOSE);
+                        sources.clear();
+                        compileAll(getSourceScanner(srcDir));
+                        affected = sources;
+                    } else {
+                        affected = getAffectedSources(scanner, srcPath, changed, dependents);
+                        if (affected.isEmpty()) {
+                            // For example, the destination files written by the last cycle
+                            log("No source files affected by " + changed.size() + " changed file(s)", Project.MSG_VERBOSE);
+                            continue;
+                        }
+                        compileAll(new SourceList(affected));
+                    }
+                    addDependents(watcher, dependents, affected);
+                    saveState();
+                } catch (BuildException e) {
+                    log(e.getMessage(), Project.MSG_ERR);
+                    errors = true;
+                }
+                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - watcher.getFirstChangeTime());
+                log("Watch cycle: " + changed.size() + " file(s) changed, " + compiled + " file(s) compiled"
+                        + (errors ? " with errors" : "") + ", latency " + latency + " ms", Project.MSG_INFO);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Stopped watching " + srcPath, Project.MSG_INFO);
+        } catch (IOException e) {
+            throw new BuildException("Cannot watch directory '" + srcPath + "'", e, getLocation());
+        }
+    }
+
+    /**
+     * Returns the source files, relative the source directory, affected by the given changed files.
+     * New source files are added to the known source files, and deleted source files are removed.
+     */
+    private Set<String> getAffectedSources(SourceScanner scanner, Path srcPath, Set<Path> changed, Map<Path, Set<String>> dependents) {
+        Set<String> affected = new TreeSet<>();
+        for (Path file : changed) {
+            affected.addAll(dependents.getOrDefault(file, Collections.emptySet()));
+            if (file.startsWith(srcPath) && Files.isRegularFile(file)) {
+                String name = srcPath.relativize(file).toString();
+                if (scanner.isIncludedFile(name, file.toFile())) {
+                    sources.add(name);
+                    affected.add(name);
+                }
+            }
+        }
+        for (Iterator<String> iterator = affected.iterator(); iterator.hasNext(); ) {
+            String name = iterator.next();
+            if (!Files.isRegularFile(toSrcPath(name))) {
+                sources.remove(name);
+                iterator.remove();
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Adds the given source files as dependents of all files they depend on, and watches
+     * the directories of those files.
+     */
+    private void addDependents(Watcher watcher, Map<Path, Set<String>> dependents, Collection<String> names) throws IOException {
+        for (String name : names) {
+            for (Path file : getDependencies(toSrcPath(name))) {
+                dependents.computeIfAbsent(file, key -> new HashSet<>()).add(name);
+                watcher.register(file.getParent());
+            }
+        }
+    }
+
+    /**
+     * Saves the dependency file, state file, and history file, if configured.
+     */
+    private void saveState() {
+        if (depFile != null) {
+            graph.save(Paths.get(depFile));
+        }
+        if (stateFile != null) {
+            state.save(Paths.get(stateFile));
+        }
+        if (historyFile != null) {
+            history.save(Paths.get(historyFile));
+        }
     }
 
     private void setUp() {
         if (destDir == null) {
             destDir = srcDir;
         }
+        if (threads < 1) {
+            throw new BuildException("Invalid number of threads: " + threads, getLocation());
+        }
+        if (scanLimit < 0) {
+            throw new BuildException("Invalid scan limit: " + scanLimit, getLocation());
+        }
+        if (timeout < 0 || totalTimeout < 0) {
+            throw new BuildException("Invalid timeout: " + Math.min(timeout, totalTimeout), getLocation());
+        }
+        if (!SCANNER_ANT.equals(scanner) && !SCANNER_NIO.equals(scanner)) {
+            throw new BuildException("Invalid scanner: " + scanner, getLocation());
+        }
+        if (watchDelay < 0) {
+            throw new BuildException("Invalid watch delay: " + watchDelay, getLocation());
+        }
+        if (memoryBudget < 0) {
+            throw new BuildException("Invalid memory budget: " + memoryBudget, getLocation());
+        }
+        if (cacheFailures && stateFile == null) {
+            throw new BuildException("Attribute cachefailures requires a state file", getLocation());
+        }
+        if (shard != null) {
+            if (watch) {
+                throw new BuildException("Attribute shard cannot be combined with watch mode", getLocation());
+            }
+            try {
+                buildShard = Shard.parse(shard);
+            } catch (IllegalArgumentException e) {
+                throw new BuildException("Invalid shard: " + shard, getLocation());
+            }
+        }
+        targets = getTargets();
+        sources = watch ? new HashSet<>() : null;
+
+        if (cacheRef != null) {
+            setUpSharedCache();
+        } else {
+            graph = new DependencyGraph(DependencyGraph.getIncludePaths(System.getenv("INCLUDE")));
+            if (depFile != null) {
+                graph.load(Paths.get(depFile));
+            }
+            graph.beginBuild();
+
+            if (SCANNER_NIO.equals(scanner)) {
+                directoryIndex = new DirectoryIndex();
+            }
+        }
+
+        if (stateFile != null) {
+            state = new BuildState();
+            state.load(Paths.get(stateFile));
+        }
+
+        if (historyFile != null) {
+            history = new BuildHistory();
+            history.load(Paths.get(historyFile));
+        }
+
+        if (jobServer) {
+            String makeFlags = System.getenv("MAKEFLAGS");
+            jobSlots = JobServer.getInstance(makeFlags);
+            if (jobSlots instanceof JobServer.Local) {
+                log("No make jobserver found; sharing job slots with other tasks in the JVM", Project.MSG_VERBOSE);
+            } else {
+                log("Using make jobserver " + JobServer.getPath(makeFlags), Project.MSG_VERBOSE);
+            }
+        }
+
+        if (workers != null) {
+            setUpWorkers();
+        }
+
+        if (cacheDir != null) {
+            artifactCache = new ArtifactCache(Paths.get(cacheDir), cacheSize * MEGABYTE);
+            try {
+                compilerId = ProcessUtils.getCompilerId(compiler);
+            } catch (IOException | InterruptedException | TimeoutException e) {
+                throw new BuildException("Cannot run compiler: " + e.getMessage(), e, getLocation());
+            }
+        }
     }
 
     private void tearDown() {
@@ -189,15 +680,92 @@ public class Fasm extends MatchingTask {
     }
 
     /**
-     * Scans the source directory recursively, and returns a list of all files that match
-     * the configured includes and excludes patterns. The returned filenames are relative
-     * the source directory.
+     * Connects to the configured remote workers, and asks each of them how many compilations it can
+     * run at the same time. Workers that cannot be reached are skipped, so the build can continue
+     * with the remaining workers, and the local threads.
+     */
+    private void setUpWorkers() {
+        Map<WorkerClient, Integer> remoteSlots = new LinkedHashMap<>();
+        for (String endpoint : workers.split(",")) {
+            if (endpoint.trim().isEmpty()) {
+                continue;
+            }
+            WorkerClient worker;
+            try {
+                worker = WorkerClient.parse(endpoint);
+            } catch (IllegalArgumentException e) {
+                throw new BuildException("Invalid worker: " + endpoint, getLocation());
+            }
+            try {
+                int slots = worker.getSlots();
+                log("Using worker " + worker + " with " + slots + " slot(s)", Project.MSG_VERBOSE);
+                remoteSlots.put(worker, slots);
+            } catch (IOException e) {
+                log("Worker " + worker + " not available: " + e.getMessage(), Project.MSG_WARN);
+            }
+        }
+        workerPool = new WorkerPool(threads, remoteSlots);
+    }
+
+    /**
+     * Looks up the shared cache in the project references, and creates it if it does not exist yet.
+     * The dependency file, if any, is only loaded when the cache is created, since the cache is at
+     * least as recent as the dependency file after that.
      */
-    private List<String> getIncludedFiles(String srcDir) {
+    private void setUpSharedCache() {
+        Object reference = getProject().getReference(cacheRef);
+        if (reference == null) {
+            fasmCache = new FasmCache(DependencyGraph.getIncludePaths(System.getenv("INCLUDE")));
+            if (depFile != null) {
+                fasmCache.getGraph().load(Paths.get(depFile));
+            }
+            getProject().addReference(cacheRef, fasmCache);
+        } else if (reference instanceof FasmCache) {
+            fasmCache = (FasmCache) reference;
+        } else {
+            throw new BuildException("Reference '" + cacheRef + "' is not a fasm cache", getLocation());
+        }
+        graph = fasmCache.getGraph();
+        directoryIndex = fasmCache.getIndex();
+    }
+
+    /**
+     * Returns a scanner that scans the source directory recursively, and returns all files that
+     * match the configured includes and excludes patterns, one at a time. The returned filenames
+     * are relative the source directory. The NIO scanner also returns the attributes of each file, and so
+     * does the Ant scanner if using a shared cache, in which case the directory listings are taken from the cache.
+     */
+    private SourceScanner getSourceScanner(String srcDir) {
         if (!includeConfigured) {
             setIncludes(DEFAULT_INCLUDES);
         }
-        return Arrays.asList(getDirectoryScanner(new File(srcDir)).getIncludedFiles());
+        File baseDir = new File(srcDir);
+        if (!baseDir.isDirectory()) {
+            throw new BuildException(baseDir.getAbsolutePath() + DirectoryScanner.DOES_NOT_EXIST_POSTFIX, getLocation());
+        }
+        fileset.setDir(baseDir);
+        SourceScanner sourceScanner = SCANNER_NIO.equals(scanner) ? new NioSourceScanner() : new AntSourceScanner(fasmCache != null ? directoryIndex : null);
+        fileset.setupDirectoryScanner(sourceScanner, getProject());
+        return sourceScanner;
+    }
+
+    /**
+     * Scans the entire source directory, and returns the source files that belong to the shard
+     * of this build. The source files are balanced over the shards using the compile times
+     * recorded in the history file, if any.
+     */
+    private SourceScanner getShardSources(SourceScanner scanner) {
+        List<String> names = new ArrayList<>();
+        try {
+            while (hasNext(scanner)) {
+                names.add(scanner.next());
+            }
+        } finally {
+            scanner.close();
+        }
+        List<String> selected = buildShard.select(names, name -> (history != null) ? history.getDuration(toSrcPath(name)) : -1);
+        log("Shard " + buildShard + ": " + selected.size() + " of " + names.size() + " source file(s)", Project.MSG_INFO);
+        return new SourceList(selected);
     }
 
     /**
@@ -208,58 +776,736 @@ public class Fasm extends MatchingTask {
     }
 
     /**
-     * Returns the destination path, matching the given source filename.
+     * Returns the destination paths, one for each variant, matching the given source filename. The
+     * format of the source file is taken from the dependency graph, so unchanged files are not read
+     * again. If the attributes of the source file are known, they are not read again either. The
+     * format is only detected once, no matter how many variants there are, so the time it takes is
+     * reported for the first variant only.
+     */
+    private List<Path> toDestPaths(String srcFilename, BasicFileAttributes attributes) {
+        long start = System.nanoTime();
+        Path srcFile = toSrcPath(srcFilename);
+        String format = graph.getFormat(srcFile, attributes, scanLimit);
+        String fileType = FormatUtils.getFileType(format);
+        long formatTime = System.nanoTime() - start;
+        List<Path> destFiles = new ArrayList<>();
+        for (Variant target : targets) {
+            Path destFile = FileUtils.getDestPath(srcFilename, Paths.get(target.getDestDir()), fileType);
+            if (report != null) {
+                report.get(srcFile, destFile).setFormat(destFile, format, destFiles.isEmpty() ? formatTime : 0);
+            }
+            destFiles.add(destFile);
+        }
+        return destFiles;
+    }
+
+    /**
+     * Returns the variants to build. If no variants are configured, the task attributes make up the only
+     * variant. Otherwise, attributes that are not set on a variant are taken from the task, and the
+     * compiler args of a variant are added to those of the task.
+     */
+    private List<Variant> getTargets() {
+        Variant defaults = new Variant();
+        defaults.setDestDir(destDir);
+        defaults.setMemory(memory);
+        defaults.setPasses(passes);
+        compilerArgs.forEach(defaults::addConfiguredCompilerArg);
+        if (variants.isEmpty()) {
+            return Collections.singletonList(defaults);
+        }
+
+        List<Variant> result = new ArrayList<>();
+        Set<Path> destDirs = new HashSet<>();
+        for (Variant variant : variants) {
+            Variant target = new Variant();
+            target.setName(variant.getName());
+            target.setDestDir((variant.getDestDir() != null) ? variant.getDestDir() : destDir);
+            target.setMemory((variant.getMemory() != null) ? variant.getMemory() : memory);
+            target.setPasses((variant.getPasses() != null) ? variant.getPasses() : passes);
+            defaults.getCompilerArgs().forEach(target::addConfiguredCompilerArg);
+            variant.getCompilerArgs().forEach(target::addConfiguredCompilerArg);
+            if (!destDirs.add(Paths.get(target.getDestDir()).toAbsolutePath().normalize())) {
+                throw new BuildException("Variants must have different destination directories: " + target.getDestDir(), getLocation());
+            }
+            result.add(target);
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if the given source file needs recompilation. Without a state file, this
+     * is decided by comparing file modification times. With a state file, it is decided by comparing
+     * the current state of the input files and command line with the state recorded in the last build.
+     * A destination file that exists, but has no recorded state, is checked using modification times.
+     */
+    private boolean needsRecompilation(Variant target, Path srcFile, Path destFile) {
+        long start = System.nanoTime();
+        BuildReport.Reason reason = getReason(target, srcFile, destFile);
+        if (report != null) {
+            BuildReport.Record record = report.get(srcFile, destFile);
+            record.setVariant(target.getName());
+            record.setReason(reason, System.nanoTime() - start);
+        }
+        return reason != BuildReport.Reason.UP_TO_DATE;
+    }
+
+    /**
+     * Returns the reason the given source file needs recompilation, or {@link BuildReport.Reason#UP_TO_DATE}
+     * if it does not need recompilation.
+     */
+    private BuildReport.Reason getReason(Variant target, Path srcFile, Path destFile) {
+        if (state == null) {
+            return getTimestampReason(srcFile, destFile);
+        }
+
+        BuildState.Entry current = state.createEntry(getDependencies(srcFile), buildArgs(target, srcFile.toString(), destFile.toString()));
+        BuildState.Entry previous = state.getOutput(destFile);
+
+        BuildReport.Reason reason;
+        if (getLastModifiedTime(destFile) == null) {
+            reason = BuildReport.Reason.MISSING;
+        } else if (previous == null) {
+            reason = getTimestampReason(srcFile, destFile);
+        } else if (!previous.getInputHash().equals(current.getInputHash())) {
+            reason = BuildReport.Reason.INPUTS_CHANGED;
+        } else if (!previous.getArgsHash().equals(current.getArgsHash())) {
+            reason = BuildReport.Reason.ARGS_CHANGED;
+        } else {
+            reason = BuildReport.Reason.UP_TO_DATE;
+        }
+
+        if (reason != BuildReport.Reason.UP_TO_DATE) {
+            pendingStates.put(destFile, current);
+        } else {
+            state.putOutput(destFile, current);
+        }
+        return reason;
+    }
+
+    /**
+     * Returns the reason the given source file needs recompilation, judging by file modification times only.
+     */
+    private BuildReport.Reason getTimestampReason(Path srcFile, Path destFile) {
+        FileTime destTime = getLastModifiedTime(destFile);
+        if (destTime == null) {
+            return BuildReport.Reason.MISSING;
+        } else if (graph.getLastModifiedTime(srcFile).compareTo(destTime) > 0) {
+            return BuildReport.Reason.SOURCE_NEWER;
+        } else if (getDependencies(srcFile).stream().anyMatch(file -> graph.getLastModifiedTime(file).compareTo(destTime) > 0)) {
+            return BuildReport.Reason.INCLUDE_NEWER;
+        } else {
+            return BuildReport.Reason.UP_TO_DATE;
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the given destination file, or 0 if it cannot be read.
+     */
+    private static long getSize(Path destFile) {
+        try {
+            return Files.size(destFile);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the last modification time of the given destination file, or {@code null} if it does not exist.
+     * The source files and the files they include are checked using the dependency graph instead, since they
+     * are only checked once per build.
+     */
+    private FileTime getLastModifiedTime(Path destFile) {
+        if (directoryIndex != null) {
+            return directoryIndex.getLastModifiedTime(destFile);
+        }
+        try {
+            return Files.getLastModifiedTime(destFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new BuildException("Cannot check file modification time", e, getLocation());
+        }
+    }
+
+    /**
+     * Compiles all stale source files found by {@code scanner}, using a pool of worker threads.
+     * Each source file is submitted for compilation as soon as it has been found, and found to
+     * be stale, so compilation starts before the scan has finished. To keep memory usage bounded,
+     * the scan waits while there are too many compilations in progress or waiting. If a history
+     * file is configured, waiting compilations start in the order given by the history, and not
+     * in the order they were found. The compile results are reported by the calling thread as
+     * they become available. If the total timeout expires, or if the calling thread is interrupted,
+     * or, in fail fast mode, if a compilation fails, the scan stops, all compilations that are still
+     * in progress are cancelled, and their compile processes are killed.
+     */
+    private void compileAll(SourceScanner scanner) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(totalTimeout);
+        int slots = (workerPool != null) ? workerPool.getSlots() : threads;
+        int maxOutstanding = slots * MAX_OUTSTANDING_PER_THREAD;
+        ToLongFunction<Path> priority = srcFile -> 0;
+        if (history != null) {
+            maxOutstanding = Math.max(maxOutstanding, MAX_OUTSTANDING_WITH_HISTORY);
+            priority = history::getSchedulePriority;
+        }
+        CompileQueue queue = new CompileQueue(slots, new WorkerThreadFactory(), priority, memoryBudget);
+        Map<Path, Set<String>> tempFiles = new HashMap<>();
+        try {
+            boolean inTime = true;
+            while (inTime && !isStopped() && hasNext(scanner)) {
+                String srcFilename = scanner.next();
+                if (sources != null) {
+                    sources.add(srcFilename);
+                }
+                Path srcFile = toSrcPath(srcFilename);
+                List<Path> destFiles = toDestPaths(srcFilename, scanner.getAttributes());
+
+                for (int i = 0; i < targets.size(); i++) {
+                    Variant target = targets.get(i);
+                    Path destFile = destFiles.get(i);
+
+                    // Make sure the destination directory exists
+                    if (directoryIndex != null) {
+                        directoryIndex.makeDirectory(destFile);
+                    } else {
+                        FileUtils.makeDirectory(destFile);
+                    }
+                    deleteTempFile(destFile, tempFiles);
+
+                    if (needsRecompilation(target, srcFile, destFile)) {
+                        if (target.getName() != null) {
+                            variantNames.put(destFile, target.getName());
+                        }
+                        CompileResult failure = getKnownFailure(srcFile, destFile);
+                        if (failure != null) {
+                            report(failure);
+                        } else {
+                            Map.Entry<Path, Path> entry = new AbstractMap.SimpleImmutableEntry<>(srcFile, destFile);
+                            BuildReport.Record record = (report != null) ? report.get(srcFile, destFile) : null;
+                            queue.submit(entry, getMemoryEstimate(target, srcFile), () -> compile(target, entry, record));
+                        }
+                    }
+                }
+                inTime = reportResults(queue, maxOutstanding - 1, deadline);
+            }
+            if (inTime && !isStopped()) {
+                inTime = reportResults(queue, 0, deadline);
+            }
+            if (!inTime) {
+                queue.cancel(CANCEL_WAIT, this::report).forEach(entry -> report(timedOut(entry)));
+                log("Total timeout of " + totalTimeout + " ms expired", Project.MSG_ERR);
+                errors = true;
+            } else if (isStopped()) {
+                List<Map.Entry<Path, Path>> cancelled = queue.cancel(CANCEL_WAIT, this::report);
+                cancelled.forEach(entry -> report(cancelled(entry)));
+                log("Compile failed; " + cancelled.size() + " remaining compilation(s) cancelled", Project.MSG_ERR);
+            }
+        } catch (InterruptedException e) {
+            queue.cancel(CANCEL_WAIT, this::closeQuietly);
+            Thread.currentThread().interrupt();
+            throw new BuildException("Compilation interrupted", e, getLocation());
+        } catch (ExecutionException e) {
+            // Do not leave the remaining compilations running after the task has failed
+            queue.cancel(CANCEL_WAIT, this::closeQuietly);
+            throw new BuildException(e.getCause().getMessage(), e.getCause(), getLocation());
+        } finally {
+            scanner.close();
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Deletes the temporary file of the given destination file, if it was left behind by a build
+     * that was killed. Each destination directory is only listed once per build, and the names of
+     * the temporary files found are kept in {@code tempFiles}.
+     */
+    private void deleteTempFile(Path destFile, Map<Path, Set<String>> tempFiles) {
+        Set<String> names = tempFiles.computeIfAbsent(destFile.getParent(), this::listTempFiles);
+        Path tempFile = FileUtils.getTempPath(destFile);
+        if (names.remove(tempFile.getFileName().toString())) {
+            log("Deleting leftover temporary file " + tempFile, Project.MSG_VERBOSE);
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                throw new BuildException("Cannot delete temporary file '" + tempFile + "'", e, getLocation());
+            }
+            if (fasmCache != null) {
+                fasmCache.update(tempFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of all temporary files in the given destination directory.
+     */
+    private Set<String> listTempFiles(Path directory) {
+        Set<String> names = new HashSet<>();
+        if (directoryIndex != null) {
+            directoryIndex.list(directory).keySet().stream().filter(name -> name.startsWith(FileUtils.TEMP_PREFIX)).forEach(names::add);
+        } else {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FileUtils.TEMP_PREFIX + "*")) {
+                stream.forEach(file -> names.add(file.getFileName().toString()));
+            } catch (NoSuchFileException e) {
+                // No destination directory, no temporary files
+            } catch (IOException e) {
+                throw new BuildException("Cannot list destination directory '" + directory + "'", e, getLocation());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the recorded failure of the given destination file as a compile result, if failures
+     * are cached, and the destination file failed to compile in exactly the same state the last time.
+     * Otherwise, returns {@code null}.
+     */
+    private CompileResult getKnownFailure(Path srcFile, Path destFile) {
+        if (!cacheFailures) {
+            return null;
+        }
+        BuildState.Failure failure = state.getFailure(destFile);
+        if (failure == null || !failure.getEntry().equals(pendingStates.get(destFile))) {
+            return null;
+        }
+        // The output is stored with a line terminator, that is added again when appended
+        String text = failure.getOutput();
+        ProcessOutput output = new ProcessOutput();
+        try {
+            output.append(text.endsWith("\n") ? text.substring(0, text.length() - 1) : text);
+        } catch (IOException e) {
+            throw new BuildException("Cannot store compiler output: " + e.getMessage(), e, getLocation());
+        }
+        return new CompileResult(srcFile, destFile, CompileResult.Status.FAILURE, failure.getExitValue(), output, true);
+    }
+
+    /**
+     * Returns the estimated memory usage in kilobytes of compiling the given source file, that is,
+     * the configured memory limit of the variant, or the memory used by the last compilation of the
+     * source file, if known.
+     */
+    private long getMemoryEstimate(Variant target, Path srcFile) {
+        if (target.getMemory() != null) {
+            return target.getMemory();
+        }
+        long previous = (history != null) ? history.getMemory(srcFile) : -1;
+        return (previous > 0) ? previous : DEFAULT_MEMORY_ESTIMATE;
+    }
+
+    /**
+     * Returns {@code true} if the scanner has more files, and keeps track of the time spent scanning.
+     */
+    private boolean hasNext(SourceScanner scanner) {
+        long start = System.nanoTime();
+        boolean hasNext = scanner.hasNext();
+        if (report != null) {
+            report.addScanTime(System.nanoTime() - start);
+        }
+        return hasNext;
+    }
+
+    /**
+     * Returns {@code true} if no more compilations should be started, because a compilation
+     * failed in fail fast mode.
+     */
+    private boolean isStopped() {
+        return failFast && errors;
+    }
+
+    /**
+     * Reports all compile results that are available, and waits for more results until no more than
+     * {@code limit} compilations are in progress or waiting. In fail fast mode, stops as soon as a
+     * compilation has failed. Returns {@code false} if the total timeout expired.
+     */
+    private boolean reportResults(CompileQueue queue, int limit, long deadline) throws InterruptedException, ExecutionException {
+        while (true) {
+            if (totalTimeout > 0 && deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            CompileResult result;
+            if (queue.size() <= limit) {
+                result = queue.poll();
+                if (result == null) {
+                    return true;
+                }
+            } else if (totalTimeout > 0) {
+                result = queue.poll(deadline - System.nanoTime());
+                if (result == null) {
+                    return false;
+                }
+            } else {
+                result = queue.take();
+            }
+            report(result);
+            if (isStopped()) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a compile result for a source file that did not finish before the total timeout.
+     */
+    private static CompileResult timedOut(Map.Entry<Path, Path> entry) {
+        return new CompileResult(entry.getKey(), entry.getValue(), CompileResult.Status.TIMEOUT, -1, null, false);
+    }
+
+    /**
+     * Returns a compile result for a source file that was cancelled in fail fast mode.
      */
-    private Path toDestPath(String srcFilename) {
-        String destFileType = FileUtils.getDestFileType(Paths.get(srcDir, srcFilename));
-        return FileUtils.getDestPath(srcFilename, Paths.get(destDir), destFileType);
+    private static CompileResult cancelled(Map.Entry<Path, Path> entry) {
+        return new CompileResult(entry.getKey(), entry.getValue(), CompileResult.Status.CANCELLED, -1, null, false);
     }
 
     /**
      * Compiles the source file specified by {@code entry} to the destination file specified by the same.
+     * This method is called by the worker threads, and must not access any mutable task state,
+     * except the report record of the source file, if any, the thread-safe dependency graph, and
+     * the thread-safe file hashes of the build state.
+     * If remote workers are configured, the source file is compiled on the worker that owns the
+     * slot acquired, or locally, if a local slot is acquired, or the worker fails.
      */
-    private void compile(Map.Entry<Path, Path> entry) {
-        log("Building file: " + entry.getKey(), Project.MSG_INFO);
+    private CompileResult compile(Variant target, Map.Entry<Path, Path> entry, BuildReport.Record record) throws IOException, InterruptedException {
+        Path srcFile = entry.getKey();
+        Path destFile = entry.getValue();
+        // The source file has changed, so its exact input files are only known again if
+        // this compilation writes symbolic information, and not if it is fetched from the cache
+        graph.removeInputs(srcFile);
 
-        Process process;
+        String cacheKey = null;
+        if (artifactCache != null) {
+            // Reuse the file hashes of the state file, if any, that are likely to have been computed already
+            Function<Path, String> hasher = (state != null) ? state::getHash : FileUtils::hash;
+            cacheKey = ArtifactCache.getKey(srcFile, getDependencies(srcFile), compilerId, buildOptions(target), hasher);
+            if (artifactCache.fetch(cacheKey, destFile)) {
+                return new CompileResult(srcFile, destFile, CompileResult.Status.SUCCESS, 0, null, true);
+            }
+        }
+
+        // Workers only accept the compiler options that cannot make the compiler write files outside their sandbox
+        if (workerPool == null || !WorkerProtocol.isAllowed(buildOptions(target))) {
+            return compileLocally(target, srcFile, destFile, cacheKey, record);
+        }
+        WorkerClient worker = workerPool.acquire();
         try {
-            String srcFile = entry.getKey().toString();
-            String destFile = entry.getValue().toString();
-            process = ProcessUtils.setUpProcess(buildArgs(srcFile, destFile));
-        } catch (IOException | InterruptedException e) {
-            throw new BuildException(e.getMessage(), e);
+            if (worker != null) {
+                try {
+                    return compileRemotely(worker, target, srcFile, destFile, cacheKey, record);
+                } catch (IOException e) {
+                    // Compile locally instead, even if all local slots are in use, rather than failing the build
+                    log("Worker " + worker + " failed, compiling " + srcFile + " locally: " + e.getMessage(), Project.MSG_WARN);
+                    workerPool.fail(worker);
+                }
+            }
+            return compileLocally(target, srcFile, destFile, cacheKey, record);
+        } finally {
+            workerPool.release(worker);
+        }
+    }
+
+    /**
+     * Compiles the given source file on the local machine.
+     */
+    private CompileResult compileLocally(Variant target, Path srcFile, Path destFile, String cacheKey, BuildReport.Record record)
+            throws IOException, InterruptedException {
+        // Forward the compiler output to the log as it arrives, and keep it in case the compilation fails
+        ProcessOutput output = new ProcessOutput();
+        // Compile to a temporary file, so the destination file is only replaced if the compilation succeeds
+        Path tempFile = FileUtils.getTempPath(destFile);
+        Path fasFile = null;
+        Integer token = null;
+        long start = System.nanoTime();
+        long[] spawnTime = new long[1];
+        long[] memoryUsed = new long[1];
+        try {
+            // Wait for a job slot, if job slots are shared with other tasks
+            if (jobSlots != null) {
+                token = jobSlots.acquire();
+                start = System.nanoTime();
+            }
+            if (exactDeps) {
+                fasFile = Files.createTempFile("fasm-", ".fas");
+            }
+            String[] args = buildArgs(target, srcFile.toString(), tempFile.toString(), fasFile);
+            int exitValue = ProcessUtils.execute(args, output, memoryListener(memoryUsed), timeout, time -> spawnTime[0] = time);
+            long duration = System.nanoTime() - start;
+            if (record != null) {
+                record.setProcess(spawnTime[0], duration);
+            }
+            if (exitValue == 0) {
+                FileUtils.move(tempFile, destFile);
+                if (fasFile != null) {
+                    readInputs(srcFile, fasFile);
+                }
+                if (cacheKey != null) {
+                    artifactCache.store(cacheKey, destFile);
+                }
+            }
+            return new CompileResult(srcFile, destFile, exitValue, output, duration, memoryUsed[0]);
+        } catch (TimeoutException e) {
+            long duration = System.nanoTime() - start;
+            if (record != null) {
+                record.setProcess(spawnTime[0], duration);
+            }
+            return new CompileResult(srcFile, destFile, CompileResult.Status.TIMEOUT, -1, output, false, duration);
+        } catch (InterruptedException | IOException | RuntimeException e) {
+            output.close();
+            throw e;
+        } finally {
+            try {
+                if (token != null) {
+                    jobSlots.release(token);
+                }
+            } finally {
+                // The compile process may have failed, or been killed, and left an incomplete file behind
+                Files.deleteIfExists(tempFile);
+                if (fasFile != null) {
+                    Files.deleteIfExists(fasFile);
+                }
+            }
         }
+    }
 
-        updated = true;
-        if (process.exitValue() != 0) {
-            log(FAIL_MSG, Project.MSG_ERR);
-            log(ProcessUtils.readOutput(process), Project.MSG_INFO);
+    /**
+     * Compiles the given source file on a remote worker. The source file, and all files it includes,
+     * are sent to the worker, and the destination file is sent back. The worker does not return any
+     * symbolic information, so the exact input files of the source file remain unknown.
+     *
+     * @throws IOException If the worker cannot be reached, or fails to run the compiler.
+     * @throws InterruptedException If interrupted, in which case the compilation is cancelled on the worker.
+     */
+    private CompileResult compileRemotely(WorkerClient worker, Variant target, Path srcFile, Path destFile, String cacheKey,
+                                          BuildReport.Record record) throws IOException, InterruptedException {
+        log("Compiling " + srcFile + " on worker " + worker, Project.MSG_VERBOSE);
+        ProcessOutput output = new ProcessOutput();
+        Path tempFile = FileUtils.getTempPath(destFile);
+        long start = System.nanoTime();
+        long[] memoryUsed = new long[1];
+        try {
+            int exitValue = worker.compile(srcFile, getDependencies(srcFile), buildOptions(target),
+                    DependencyGraph.getIncludePaths(System.getenv("INCLUDE")), tempFile, output, memoryListener(memoryUsed), timeout);
+            long duration = System.nanoTime() - start;
+            if (record != null) {
+                record.setProcess(0, duration);
+            }
+            if (exitValue == 0) {
+                FileUtils.move(tempFile, destFile);
+                if (cacheKey != null) {
+                    artifactCache.store(cacheKey, destFile);
+                }
+            }
+            return new CompileResult(srcFile, destFile, exitValue, output, duration, memoryUsed[0]);
+        } catch (TimeoutException e) {
+            long duration = System.nanoTime() - start;
+            if (record != null) {
+                record.setProcess(0, duration);
+            }
+            return new CompileResult(srcFile, destFile, CompileResult.Status.TIMEOUT, -1, output, false, duration);
+        } catch (InterruptedException | IOException | RuntimeException e) {
+            output.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Returns a listener that picks up the memory used by the compiler from its output. The output
+     * itself is logged when the compile result is reported, so the output of each file stays in one
+     * piece, even if several files are compiled at the same time.
+     */
+    private static Consumer<String> memoryListener(long[] memoryUsed) {
+        return line -> {
+            if (memoryUsed[0] == 0) {
+                memoryUsed[0] = parseMemory(line);
+            }
+        };
+    }
+
+    /**
+     * Returns the memory in kilobytes that fasm reports it uses in the given line of output,
+     * or 0 if the line does not contain the memory usage.
+     */
+    private static long parseMemory(String line) {
+        Matcher matcher = PATTERN_MEMORY.matcher(line);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+    /**
+     * Returns all files that the given source file depends on. The exact input files recorded in the
+     * dependency graph are only used if this task records them too, since the graph may be shared with
+     * other tasks, and exact input files are only kept up to date by tasks that record them.
+     */
+    private Set<Path> getDependencies(Path srcFile) {
+        return graph.getDependencies(srcFile, exactDeps);
+    }
+
+    /**
+     * Reads the exact input files of the given source file from the symbolic information file, and
+     * records them in the dependency graph. If the symbolic information file cannot be read, the
+     * input files found by parsing the source file are used instead.
+     */
+    private void readInputs(Path srcFile, Path fasFile) {
+        try {
+            graph.putInputs(srcFile, SymbolFile.read(fasFile));
+        } catch (IOException e) {
+            log("Cannot read symbolic information of " + srcFile + ": " + e.getMessage(), Project.MSG_VERBOSE);
+            graph.removeInputs(srcFile);
+        }
+    }
+
+    /**
+     * Reports the given compile result, and updates the task state accordingly.
+     */
+    private void report(CompileResult result) {
+        String variantName = variantNames.remove(result.getDestFile());
+        if (result.getStatus() == CompileResult.Status.CANCELLED) {
+            log("Compile cancelled: " + result.getSrcFile(), Project.MSG_VERBOSE);
+        } else {
+            String destination = variants.isEmpty() ? "" : " to " + result.getDestFile();
+            if (variantName != null) {
+                destination += " (" + variantName + ")";
+            }
+            log("Building file: " + result.getSrcFile() + destination + (result.isCached() ? " (cached)" : ""), Project.MSG_INFO);
+        }
+        if (report != null) {
+            BuildReport.Record record = report.get(result.getSrcFile(), result.getDestFile());
+            record.setResult(result);
+            if (result.isSuccess()) {
+                record.setOutputSize(getSize(result.getDestFile()));
+            }
+        }
+        if (fasmCache != null) {
+            fasmCache.update(result.getDestFile());
+        }
+        if (result.getStatus() != CompileResult.Status.CANCELLED) {
+            compiled++;
+            updated = true;
+            if (history != null) {
+                history.put(result.getSrcFile(), result.isSuccess(), result.getDuration(), result.getMemory());
+            }
+        }
+
+        String failureOutput = null;
+        if (result.getStatus() == CompileResult.Status.CANCELLED) {
+            closeQuietly(result);
+        } else if (!result.isSuccess()) {
+            if (result.getStatus() == CompileResult.Status.TIMEOUT) {
+                log("Compile timed out: " + result.getSrcFile(), Project.MSG_ERR);
+            } else {
+                log(FAIL_MSG, Project.MSG_ERR);
+            }
+            failureOutput = logOutput(result, Project.MSG_INFO);
             errors = true;
+        } else {
+            logOutput(result, Project.MSG_VERBOSE);
+        }
+
+        if (state != null) {
+            BuildState.Entry entry = pendingStates.remove(result.getDestFile());
+            if (exactDeps && result.isSuccess() && entry != null && !result.isCached()) {
+                // The exact input files may differ from the files the state entry was created from
+                BuildState.Entry exact = state.createEntry(getDependencies(result.getSrcFile()));
+                entry = new BuildState.Entry(exact.getInputHash(), entry.getArgsHash());
+            }
+            if (result.isSuccess() && entry != null) {
+                state.putOutput(result.getDestFile(), entry);
+            } else {
+                state.removeOutput(result.getDestFile());
+            }
+            // Only failures reported by the compiler itself are repeatable, not timeouts or cancellations
+            if (cacheFailures && result.getStatus() == CompileResult.Status.FAILURE && !result.isCached() && entry != null && failureOutput != null) {
+                state.putFailure(result.getDestFile(), new BuildState.Failure(entry, result.getExitValue(), truncate(failureOutput)));
+            } else if (result.isSuccess()) {
+                state.removeFailure(result.getDestFile());
+            }
         }
+    }
+
+    /**
+     * Logs the compiler output of the given compile result, line by line, and releases the output.
+     * The output is streamed from the temporary file, if it has been spilled, so it is never read
+     * into memory as a whole. Returns the output, truncated like {@link #truncate(String)}, or
+     * {@code null} if it cannot be read.
+     */
+    private String logOutput(CompileResult result, int level) {
+        StringBuilder head = new StringBuilder();
+        try {
+            result.forEachOutputLine(line -> {
+                log(line, level);
+                if (head.length() <= ProcessOutput.DEFAULT_THRESHOLD) {
+                    head.append(line).append('\n');
+                }
+            });
+            return truncate(head.toString());
+        } catch (IOException e) {
+            log("Cannot read compiler output: " + e.getMessage(), Project.MSG_ERR);
+            return null;
+        } finally {
+            closeQuietly(result);
+        }
+    }
+
+    /**
+     * Truncates the given compiler output to the size kept in memory by {@link ProcessOutput}, so the
+     * state file does not grow too large.
+     */
+    private static String truncate(String output) {
+        if (output.length() <= ProcessOutput.DEFAULT_THRESHOLD) {
+            return output;
+        }
+        return output.substring(0, ProcessOutput.DEFAULT_THRESHOLD) + "\n[output truncated]\n";
+    }
 
-        ProcessUtils.tearDownProcess(process);
+    private void closeQuietly(CompileResult result) {
+        try {
+            result.close();
+        } catch (IOException e) {
+            log("Cannot delete compiler output: " + e.getMessage(), Project.MSG_VERBOSE);
+        }
     }
 
     /**
      * Returns an array of arguments used to create the build process.
      */
-    private String[] buildArgs(String srcFile, String destFile) {
+    private String[] buildArgs(Variant target, String srcFile, String destFile) {
+        return buildArgs(target, srcFile, destFile, null);
+    }
+
+    /**
+     * Returns an array of arguments used to create the build process, that also writes symbolic
+     * information to {@code fasFile}, if not {@code null}. The symbolic information file does not
+     * affect the destination file, so it is not part of the command line recorded in the state file.
+     */
+    private String[] buildArgs(Variant target, String srcFile, String destFile, Path fasFile) {
         List<String> args = new ArrayList<>();
         args.add(compiler);
-        if (memory != null) {
-            args.add("-m");
-            args.add(memory.toString());
+        args.addAll(buildOptions(target));
+        if (fasFile != null) {
+            args.add("-s");
+            args.add(fasFile.toString());
         }
-        if (passes != null) {
-            args.add("-p");
-            args.add(passes.toString());
-        }
-        compilerArgs.stream().flatMap(this::parseCompilerArg).forEach(args::add);
         args.add(srcFile);
         args.add(destFile);
         return args.toArray(new String[0]);
     }
 
+    /**
+     * Returns the list of compiler options of the given variant, that is, all arguments except
+     * the compiler, the source file, and the destination file.
+     */
+    private List<String> buildOptions(Variant target) {
+        List<String> args = new ArrayList<>();
+        if (target.getMemory() != null) {
+            args.add("-m");
+            args.add(target.getMemory().toString());
+        }
+        if (target.getPasses() != null) {
+            args.add("-p");
+            args.add(target.getPasses().toString());
+        }
+        target.getCompilerArgs().stream().flatMap(this::parseCompilerArg).forEach(args::add);
+        return args;
+    }
+
     /**
      * Parses the given compiler arg, and returns a stream that emits the different
      * parts of the compiler arg.
@@ -267,4 +1513,19 @@ public class Fasm extends MatchingTask {
     private Stream<String> parseCompilerArg(CompilerArg compilerArg) {
         return Arrays.stream(compilerArg.getValue().split("\\s+"));
     }
+
+    /**
+     * A thread factory that creates named daemon threads for the worker pool.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "fasm-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
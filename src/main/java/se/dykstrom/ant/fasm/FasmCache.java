@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A scan and metadata cache that is shared by all fasm tasks that refer to it in the same Ant run.
+ * The cache is stored as a project reference, and holds directory listings, file attributes, the
+ * detected formats, and the parsed include graph. Files are assumed not to change during the Ant
+ * run, except for the files written by the fasm tasks themselves, which are updated in the cache
+ * as soon as they have been written.
+ * <p>
+ * This class is thread-safe, so the cache can also be used by tasks running in parallel.
+ *
+ * @author Johan Dykstrom
+ */
+final class FasmCache {
+
+    private final DependencyGraph graph;
+    private final DirectoryIndex index = new DirectoryIndex(Integer.MAX_VALUE);
+
+    FasmCache(List<Path> includePaths) {
+        this.graph = new DependencyGraph(includePaths);
+        this.graph.beginBuild();
+    }
+
+    /**
+     * Returns the dependency graph that holds the formats and include graph of all known files.
+     */
+    DependencyGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the directory index that holds the listings of all known directories.
+     */
+    DirectoryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Updates the cache after the given file has been written by a fasm task.
+     *
+     * @param file The file that has been written.
+     */
+    void update(Path file) {
+        index.update(file);
+        graph.invalidate(file);
+    }
+
+    @Override
+    public String toString() {
+        return "FasmCache";
+    }
+}
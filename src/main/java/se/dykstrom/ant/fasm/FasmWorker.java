@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Runs a worker that compiles source files for fasm tasks on other machines, that list this worker
+ * in their workers attribute. The worker accepts compile requests until the build is interrupted.
+ * The worker does not authenticate its clients, so it should only be reachable from trusted machines.
+ *
+ * @author Johan Dykstrom
+ */
+@SuppressWarnings("unused,WeakerAccess")
+public class FasmWorker extends Task {
+
+    private String bind = "localhost";
+    private String compiler = "fasm";
+    private int port;
+    private String portProperty;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Sets the optional bind attribute, that is, the address to listen on.
+     */
+    public void setBind(String bind) {
+        this.bind = bind;
+    }
+
+    /**
+     * Sets the optional compiler attribute.
+     */
+    public void setCompiler(String compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * Sets the optional port attribute, that is, the port to listen on, or 0 to use any free port.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sets the optional port property attribute, that is, the property to set to the port the worker listens on.
+     */
+    public void setPortProperty(String portProperty) {
+        this.portProperty = portProperty;
+    }
+
+    /**
+     * Sets the optional threads attribute, that is, the number of compilations to run at the same time.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        if (threads < 1) {
+            throw new BuildException("Invalid number of threads: " + threads, getLocation());
+        }
+        if (port < 0 || port > 65535) {
+            throw new BuildException("Invalid port: " + port, getLocation());
+        }
+
+        try (WorkerServer server = new WorkerServer(compiler, threads, message -> log(message, Project.MSG_WARN))) {
+            int localPort = server.start(InetAddress.getByName(bind), port);
+            if (portProperty != null) {
+                getProject().setNewProperty(portProperty, Integer.toString(localPort));
+            }
+            log("Worker listening on " + bind + ":" + localPort + " with " + threads + " slot(s)", Project.MSG_INFO);
+
+            // Serve requests until interrupted, like watch mode
+            while (true) {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Worker stopped", Project.MSG_INFO);
+        } catch (IOException e) {
+            throw new BuildException("Cannot run worker on " + bind + ":" + port + ": " + e.getMessage(), e, getLocation());
+        }
+    }
+}
@@ -19,9 +19,16 @@ package se.dykstrom.ant.fasm;
 import org.apache.tools.ant.BuildException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.stream.Stream;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Contains static utility methods related to file management.
@@ -30,6 +37,13 @@ import java.util.stream.Stream;
  */
 final class FileUtils {
 
+    /** The prefix of temporary files that destination files are written to before being moved into place. */
+    static final String TEMP_PREFIX = ".fasm-tmp-";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
     private FileUtils() { }
 
     /**
@@ -90,8 +104,7 @@ final class FileUtils {
      */
     static String getDestFileType(Path srcFile) {
         try {
-            Stream<String> lines = Files.lines(srcFile);
-            String format = FormatUtils.getFormat(lines);
+            String format = FormatUtils.getFormat(srcFile, 0);
             return FormatUtils.getFileType(format);
         } catch (IOException e) {
             throw new BuildException("Cannot read source file '" + srcFile + "'", e);
@@ -111,6 +124,35 @@ final class FileUtils {
         return destDirectory.resolve(getBasename(srcFilename) + destExtension);
     }
 
+    /**
+     * Returns the path of the temporary file that {@code destFile} is written to, before it is moved
+     * into place. The temporary file is in the same directory as the destination file, so it can be
+     * renamed atomically, and has the same name every time, so a file left behind by a build that was
+     * killed can be found and deleted by the next build.
+     *
+     * @param destFile The destination file.
+     * @return The temporary file of the destination file.
+     */
+    static Path getTempPath(Path destFile) {
+        return destFile.resolveSibling(TEMP_PREFIX + destFile.getFileName());
+    }
+
+    /**
+     * Moves {@code source} to {@code target}, replacing {@code target} if it exists. The file is
+     * renamed atomically if the file system supports it, so a reader never sees a partial file.
+     *
+     * @param source The file to move.
+     * @param target The file to replace.
+     * @throws IOException If the file cannot be moved.
+     */
+    static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Returns the basename, that is, the filename without extension, for the given source {@code filename}.
      *
@@ -121,4 +163,60 @@ final class FileUtils {
         int index = filename.lastIndexOf(".");
         return index != -1 ? filename.substring(0, index) : filename;
     }
+
+    /**
+     * Returns a hash of the contents of the given file, as a hexadecimal string. The file is
+     * read in chunks through a fixed size buffer, so the size of the file does not matter.
+     *
+     * @param file The file to hash.
+     * @return The hash of the file contents.
+     * @throws BuildException If the file cannot be read.
+     */
+    static String hash(Path file) {
+        MessageDigest digest = newMessageDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Cannot read file '" + file + "'", e);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns a hash of the given strings, as a hexadecimal string.
+     *
+     * @param strings The strings to hash.
+     * @return The hash of the strings.
+     */
+    static String hash(String... strings) {
+        MessageDigest digest = newMessageDigest();
+        for (String s : strings) {
+            digest.update(s.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new BuildException("Cannot create message digest", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
 }
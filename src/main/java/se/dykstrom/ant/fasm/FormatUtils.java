@@ -18,6 +18,12 @@ package se.dykstrom.ant.fasm;
 
 import org.apache.tools.ant.BuildException;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -46,6 +52,16 @@ final class FormatUtils {
     private static final String TYPE_O = ".o";
     private static final String TYPE_OBJ = ".obj";
 
+    private static final String DEFAULT_FORMAT = "binary";
+
+    private static final byte[] KEYWORD_FORMAT = "format".getBytes(StandardCharsets.US_ASCII);
+
+    /** The size of the buffer used when scanning files. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** The maximum number of bytes of a line to keep when scanning files; the rest of a longer line is ignored. */
+    private static final int MAX_LINE_LENGTH = 1024;
+
     private FormatUtils() { }
 
     /**
@@ -63,11 +79,109 @@ final class FormatUtils {
                 .filter(Matcher::matches)
                 .map(matcher -> matcher.group(1))
                 .findFirst()
-                .orElse("binary")
+                .orElse(DEFAULT_FORMAT)
                 .toLowerCase()
                 .trim();
     }
 
+    /**
+     * Returns the first format found by scanning the given {@code file}. The file is scanned
+     * byte by byte, and the scan stops as soon as a format directive is found, or when
+     * {@code limit} bytes have been read. Lines that do not start with the format keyword are
+     * skipped without being decoded, and comments are removed from the format directive.
+     * If no format directive is found, the default format "binary" is returned.
+     *
+     * @param file The file to scan.
+     * @param limit The maximum number of bytes to scan, or 0 to scan the entire file.
+     * @return The format directive found.
+     * @throws IOException If the file cannot be read.
+     */
+    static String getFormat(Path file, long limit) throws IOException {
+        byte[] line = new byte[MAX_LINE_LENGTH];
+        int length = 0;
+        boolean skipLine = false;
+        long position = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            limitRead(buffer, limit, position);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n' || b == '\r') {
+                        if (!skipLine && isFormatDirective(line, length)) {
+                            return toFormat(line, length);
+                        }
+                        length = 0;
+                        skipLine = false;
+                    } else if (!skipLine && (length > 0 || (b != ' ' && b != '\t'))) {
+                        if (length == 0 && b != 'f' && b != 'F') {
+                            // Not a format directive, skip the rest of the line
+                            skipLine = true;
+                        } else if (length < MAX_LINE_LENGTH) {
+                            line[length++] = b;
+                        }
+                    }
+                }
+                position += buffer.limit();
+                if (limit > 0 && position >= limit) {
+                    return DEFAULT_FORMAT;
+                }
+                buffer.clear();
+                limitRead(buffer, limit, position);
+            }
+        }
+
+        return (!skipLine && isFormatDirective(line, length)) ? toFormat(line, length) : DEFAULT_FORMAT;
+    }
+
+    /**
+     * Limits the next read into the given buffer, so no bytes past {@code limit} are read,
+     * given that {@code position} bytes have been read so far.
+     */
+    private static void limitRead(ByteBuffer buffer, long limit, long position) {
+        if (limit > 0) {
+            buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given line, stripped of leading whitespace, starts
+     * with the format keyword, followed by whitespace.
+     */
+    private static boolean isFormatDirective(byte[] line, int length) {
+        int end = KEYWORD_FORMAT.length;
+        if (end >= length || (line[end] != ' ' && line[end] != '\t')) {
+            return false;
+        }
+        for (int i = 0; i < KEYWORD_FORMAT.length; i++) {
+            if ((line[i] | 0x20) != KEYWORD_FORMAT[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the format specified in the given line, which is known to be a format directive.
+     * Any comment is removed, and the format is converted to lower case.
+     */
+    private static String toFormat(byte[] line, int length) {
+        int start = KEYWORD_FORMAT.length;
+        int end = start;
+        byte quote = 0;
+        while (end < length && (quote != 0 || line[end] != ';')) {
+            if (quote == 0 && (line[end] == '\'' || line[end] == '"')) {
+                quote = line[end];
+            } else if (line[end] == quote) {
+                quote = 0;
+            }
+            end++;
+        }
+        return new String(line, start, end - start, StandardCharsets.UTF_8).toLowerCase().trim();
+    }
+
     /**
      * Returns the file type (the file extension) corresponding to the given {@code format}.
      * For example, this method will return ".exe" if the given format is "pe console".
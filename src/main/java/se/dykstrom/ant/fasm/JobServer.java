@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the number of compile processes that run at the same time, across all tasks. If the build
+ * runs under GNU make with a jobserver, that is, {@code make -jN}, the compile processes share the
+ * job slots of make, and of all other jobserver clients on the machine. Otherwise, they share a
+ * number of job slots equal to the number of processors with all other tasks in the same JVM.
+ * <p>
+ * Each job slot is represented by a token. A token must be acquired before a compile process is
+ * started, and released when it has ended. A jobserver client owns one implicit token, that it does
+ * not have to read from the jobserver, so the implicit token is shared by all tasks in the JVM.
+ *
+ * @author Johan Dykstrom
+ */
+abstract class JobServer {
+
+    /** The token that represents the implicit job slot. */
+    static final int IMPLICIT_TOKEN = -1;
+
+    /** Matches the jobserver option in MAKEFLAGS, for GNU make 4.2 and later, and for earlier versions. */
+    private static final Pattern PATTERN_AUTH = Pattern.compile("--jobserver-(?:auth|fds)=(\\S+)");
+    private static final Pattern PATTERN_FDS = Pattern.compile("(-?\\d+),(-?\\d+)");
+    private static final String FIFO_PREFIX = "fifo:";
+
+    /** The link target of a pipe file descriptor in the proc file system starts with this prefix. */
+    private static final String PIPE_PREFIX = "pipe:";
+
+    /** The file type bits of a unix file mode, and the file type of a fifo. */
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFIFO = 0010000;
+
+    /** The jobservers opened so far, by MAKEFLAGS. */
+    private static final Map<String, JobServer> JOB_SERVERS = new HashMap<>();
+
+    /** The job slots shared by all tasks in the JVM if there is no jobserver. */
+    private static final JobServer LOCAL = new Local(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Returns the jobserver specified by the given value of the MAKEFLAGS environment variable,
+     * or the job slots shared by all tasks in the JVM, if there is no jobserver, or if it cannot
+     * be opened. Jobservers are opened once, and then shared by all tasks.
+     *
+     * @param makeFlags The value of the MAKEFLAGS environment variable, or {@code null} if not set.
+     * @return The jobserver to use.
+     */
+    static synchronized JobServer getInstance(String makeFlags) {
+        Path path = getPath(makeFlags);
+        if (path == null) {
+            return LOCAL;
+        }
+        JobServer jobServer = JOB_SERVERS.get(makeFlags);
+        if (jobServer == null) {
+            try {
+                jobServer = new Make(path);
+            } catch (IOException e) {
+                jobServer = LOCAL;
+            }
+            JOB_SERVERS.put(makeFlags, jobServer);
+        }
+        return jobServer;
+    }
+
+    /**
+     * Returns the path of the jobserver specified by the given value of the MAKEFLAGS environment
+     * variable, or {@code null} if there is no jobserver. A jobserver fifo is specified by its path,
+     * and a jobserver pipe by its file descriptors, which can only be opened if they are inherited by
+     * this process, and the system has a proc file system. If make did not pass the file descriptors
+     * on, the JVM may use the same numbers for other files, so they are only accepted if they refer to
+     * a pipe or fifo.
+     */
+    static Path getPath(String makeFlags) {
+        if (makeFlags == null) {
+            return null;
+        }
+        // If the option occurs more than once, the last one is the one that counts
+        String auth = null;
+        Matcher matcher = PATTERN_AUTH.matcher(makeFlags);
+        while (matcher.find()) {
+            auth = matcher.group(1);
+        }
+        if (auth == null) {
+            return null;
+        }
+        if (auth.startsWith(FIFO_PREFIX)) {
+            return Paths.get(auth.substring(FIFO_PREFIX.length()));
+        }
+        Matcher fds = PATTERN_FDS.matcher(auth);
+        if (fds.matches() && Integer.parseInt(fds.group(1)) >= 0) {
+            Path path = Paths.get("/proc/self/fd", fds.group(1));
+            return isPipe(path) ? path : null;
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if the given file descriptor link in the proc file system refers to a pipe or fifo.
+     */
+    static boolean isPipe(Path path) {
+        try {
+            if (Files.isSymbolicLink(path) && Files.readSymbolicLink(path).toString().startsWith(PIPE_PREFIX)) {
+                return true;
+            }
+            int mode = (Integer) Files.getAttribute(path, "unix:mode");
+            return (mode & S_IFMT) == S_IFIFO;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Acquires a token, waiting until one is available.
+     *
+     * @return The token acquired, to be passed to {@link #release(int)}.
+     * @throws IOException If the jobserver cannot be read.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    abstract int acquire() throws IOException, InterruptedException;
+
+    /**
+     * Releases a token acquired by {@link #acquire()}.
+     *
+     * @param token The token to release.
+     * @throws IOException If the jobserver cannot be written.
+     */
+    abstract void release(int token) throws IOException;
+
+    /**
+     * A client of a GNU make jobserver. Tokens are single bytes, that are read from the jobserver
+     * to acquire a job slot, and written back to it to release the job slot. Reading from the
+     * jobserver cannot be interrupted, so the jobserver is polled until a token is available.
+     */
+    static final class Make extends JobServer {
+
+        /** The maximum time in milliseconds to wait between polls. */
+        private static final long POLL_INTERVAL = 10;
+
+        private final FileInputStream input;
+        private final FileOutputStream output;
+        private final Object readLock = new Object();
+
+        /** True if the implicit token is not in use. */
+        private boolean implicitFree = true;
+
+        /**
+         * Opens the jobserver fifo or pipe with the given path. The file is opened for both reading
+         * and writing, which never blocks, not even if the jobserver is a fifo.
+         */
+        Make(Path path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+            this.input = new FileInputStream(file.getFD());
+            this.output = new FileOutputStream(file.getFD());
+        }
+
+        @Override
+        int acquire() throws IOException, InterruptedException {
+            while (true) {
+                synchronized (this) {
+                    if (implicitFree) {
+                        implicitFree = false;
+                        return IMPLICIT_TOKEN;
+                    }
+                }
+                synchronized (readLock) {
+                    if (input.available() > 0) {
+                        int token = input.read();
+                        if (token == -1) {
+                            throw new IOException("Jobserver closed");
+                        }
+                        return token;
+                    }
+                }
+                synchronized (this) {
+                    if (!implicitFree) {
+                        wait(POLL_INTERVAL);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void release(int token) throws IOException {
+            if (token == IMPLICIT_TOKEN) {
+                synchronized (this) {
+                    implicitFree = true;
+                    notifyAll();
+                }
+            } else {
+                synchronized (output) {
+                    output.write(token);
+                    output.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Job slots shared by all tasks in the JVM.
+     */
+    static final class Local extends JobServer {
+
+        private final Semaphore semaphore;
+
+        Local(int slots) {
+            this.semaphore = new Semaphore(slots, true);
+        }
+
+        @Override
+        int acquire() throws InterruptedException {
+            semaphore.acquire();
+            return IMPLICIT_TOKEN;
+        }
+
+        @Override
+        void release(int token) {
+            semaphore.release();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A source scanner that walks the directory tree using {@link Files#walkFileTree}, on a separate
+ * thread. The attributes of each file are read only once, while walking the tree, and are made
+ * available to the caller, so they do not have to be read again. The walking thread hands over
+ * the included files using a bounded queue, so memory usage stays bounded even if the caller
+ * is slower than the walk.
+ *
+ * @author Johan Dykstrom
+ */
+final class NioSourceScanner extends SourceScanner {
+
+    /** The maximum number of included files waiting to be returned by the scanner. */
+    private static final int QUEUE_SIZE = 1024;
+
+    /** Marks the end of the scan. */
+    private static final Item END = new Item(null, null, null);
+
+    private final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    private Thread walker;
+    private Item next;
+    private BasicFileAttributes attributes;
+
+    @Override
+    public boolean hasNext() {
+        if (walker == null) {
+            preparePatterns();
+            walker = new Thread(this::walk, "fasm-scanner");
+            walker.setDaemon(true);
+            walker.start();
+        }
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildException("Scan interrupted", e);
+            }
+        }
+        if (next.exception != null) {
+            throw new BuildException("Cannot scan directory '" + getBasedir() + "'", next.exception);
+        }
+        return next != END;
+    }
+
+    /**
+     * Returns the next included file, relative to the base directory.
+     */
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        attributes = next.attributes;
+        String result = next.name;
+        next = null;
+        return result;
+    }
+
+    @Override
+    BasicFileAttributes getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public void close() {
+        if (walker != null) {
+            walker.interrupt();
+        }
+    }
+
+    /**
+     * Walks the directory tree, and adds each included file to the queue. This method is called by the walking thread.
+     */
+    private void walk() {
+        Path baseDir = getBasedir().toPath();
+        Set<FileVisitOption> options = isFollowSymlinks() ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class);
+        Item last = END;
+        try {
+            Files.walkFileTree(baseDir, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.equals(baseDir) || isScannedDirectory(baseDir.relativize(dir).toString())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String name = baseDir.relativize(file).toString();
+                    if (attrs.isRegularFile() && isIncludedFile(name, file.toFile())) {
+                        put(new Item(name, attrs, null));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Like the Ant directory scanner, skip files and directories that cannot be read, and symbolic link cycles
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (InterruptedIOException e) {
+            // The scan was stopped
+            return;
+        } catch (IOException e) {
+            last = new Item(null, null, e);
+        }
+        try {
+            put(last);
+        } catch (InterruptedIOException e) {
+            // The scan was stopped
+        }
+    }
+
+    private void put(Item item) throws InterruptedIOException {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Scan interrupted");
+        }
+    }
+
+    /**
+     * An included file and its attributes, or an exception that stopped the scan.
+     */
+    private static final class Item {
+
+        private final String name;
+        private final BasicFileAttributes attributes;
+        private final IOException exception;
+
+        Item(String name, BasicFileAttributes attributes, IOException exception) {
+            this.name = name;
+            this.attributes = attributes;
+            this.exception = exception;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Collects the output of a process, line by line. The output is kept in memory until it grows
+ * larger than a threshold, after which it is spilled to a temporary file. The temporary file
+ * is deleted when the output is closed. Lines appended after the output has been closed, for
+ * example by the thread reading the output of a killed process, are ignored.
+ *
+ * @author Johan Dykstrom
+ */
+final class ProcessOutput implements Closeable {
+
+    /** The default number of characters to keep in memory. */
+    static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+    private final int threshold;
+    private final StringBuilder buffer = new StringBuilder();
+
+    private Path spillFile;
+    private BufferedWriter writer;
+    private long length;
+    private boolean closed;
+
+    ProcessOutput() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    ProcessOutput(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Appends a line to the output, unless the output has been closed.
+     *
+     * @param line The line to append, without line terminator.
+     * @throws IOException If the output cannot be spilled to the temporary file.
+     */
+    synchronized void append(String line) throws IOException {
+        if (closed) {
+            return;
+        }
+        length += line.length() + 1;
+        if (writer == null && length > threshold) {
+            spillFile = Files.createTempFile("fasm-output-", ".txt");
+            writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8);
+            writer.append(buffer);
+            buffer.setLength(0);
+            buffer.trimToSize();
+        }
+        if (writer != null) {
+            writer.write(line);
+            writer.write('\n');
+        } else {
+            buffer.append(line).append('\n');
+        }
+    }
+
+    /**
+     * Returns the number of characters in the output, including line terminators.
+     */
+    synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Returns {@code true} if the output has been spilled to a temporary file.
+     */
+    synchronized boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Returns the entire output as a single string.
+     *
+     * @throws IOException If the output cannot be read back from the temporary file.
+     */
+    synchronized String getText() throws IOException {
+        if (writer == null) {
+            return buffer.toString();
+        }
+        writer.flush();
+        return new String(Files.readAllBytes(spillFile), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Passes each line of the output, without line terminator, to the given consumer. If the output
+     * has been spilled to the temporary file, it is read back one line at a time, and never kept in
+     * memory as a whole.
+     *
+     * @throws IOException If the output cannot be read back from the temporary file.
+     */
+    synchronized void forEachLine(Consumer<String> consumer) throws IOException {
+        if (writer == null) {
+            try (BufferedReader reader = new BufferedReader(new StringReader(buffer.toString()))) {
+                reader.lines().forEach(consumer);
+            }
+        } else {
+            writer.flush();
+            try (BufferedReader reader = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    consumer.accept(line);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            Files.deleteIfExists(spillFile);
+        }
+        buffer.setLength(0);
+    }
+}
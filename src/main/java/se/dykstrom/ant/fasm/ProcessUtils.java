@@ -17,9 +17,21 @@
 package se.dykstrom.ant.fasm;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Contains static utility methods related to process management.
@@ -28,46 +40,208 @@ import java.util.concurrent.TimeUnit;
  */
 final class ProcessUtils {
 
+    /** The maximum time in milliseconds to wait for the compiler to print its version information. */
+    private static final long COMPILER_ID_TIMEOUT = 10000;
+
+    /** The maximum time in milliseconds to wait for a killed process to end, or for its output to be drained. */
+    private static final long KILL_WAIT = 5000;
+
+    /** Processes that are currently running, and must be killed if the JVM shuts down. */
+    private static final Set<Process> RUNNING = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> RUNNING.forEach(ProcessUtils::kill), "fasm-shutdown"));
+    }
+
     private ProcessUtils() { }
 
     /**
-     * Sets up and returns a new compile process the executes the given {@code command}.
+     * Executes the given {@code command} in a new process, and waits for the process to end.
+     * The output of the process is drained by a separate thread while the process is running,
+     * so a process that writes a lot of output never blocks on a full pipe. Each line of output
+     * is appended to {@code output}, and passed to {@code listener} as soon as it has been read.
+     * <p>
+     * If the process does not end within {@code timeout} milliseconds, or if the calling thread
+     * is interrupted, the process and all of its descendants are killed forcibly. Processes that
+     * are still running when the JVM shuts down are also killed.
+     *
+     * @param command The command to execute.
+     * @param output Collects the output of the process.
+     * @param listener Receives each line of output as it arrives.
+     * @param timeout The maximum time in milliseconds to wait for the process to end, or 0 to wait forever.
+     * @return The exit value of the process.
+     * @throws IOException If the process cannot be started.
+     * @throws InterruptedException If interrupted while waiting for the process to end.
+     * @throws TimeoutException If the process did not end in time.
      */
-    static Process setUpProcess(String... command) throws IOException, InterruptedException {
-        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
-        Process process = builder.start();
+    static int execute(String[] command, ProcessOutput output, Consumer<String> listener, long timeout)
+            throws IOException, InterruptedException, TimeoutException {
+        return execute(command, output, listener, timeout, spawnTime -> { });
+    }
 
-        // Wait for the process to start and then end
-        process.waitFor(10, TimeUnit.SECONDS);
+    /**
+     * Executes the given {@code command} in a new process, and waits for the process to end,
+     * as described in {@link #execute(String[], ProcessOutput, Consumer, long)}. The time in
+     * nanoseconds it took to start the process is passed to {@code spawnListener}.
+     */
+    static int execute(String[] command, ProcessOutput output, Consumer<String> listener, long timeout, LongConsumer spawnListener)
+            throws IOException, InterruptedException, TimeoutException {
+        return execute(new ProcessBuilder(command), output, listener, timeout, spawnListener);
+    }
+
+    /**
+     * Executes the command of the given process builder in a new process, and waits for the process
+     * to end, as described in {@link #execute(String[], ProcessOutput, Consumer, long, LongConsumer)}.
+     * The process builder makes it possible to set the working directory and environment of the process.
+     */
+    static int execute(ProcessBuilder builder, ProcessOutput output, Consumer<String> listener, long timeout, LongConsumer spawnListener)
+            throws IOException, InterruptedException, TimeoutException {
+        long start = System.nanoTime();
+        Process process = builder.redirectErrorStream(true).start();
+        spawnListener.accept(System.nanoTime() - start);
+        RUNNING.add(process);
+        try {
+            Thread pump = startPump(process, output, listener);
+            if (timeout > 0) {
+                if (!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                    // Kill the process, and collect the output written so far
+                    kill(process);
+                    process.waitFor(KILL_WAIT, TimeUnit.MILLISECONDS);
+                    pump.join(KILL_WAIT);
+                    throw new TimeoutException("Process did not end within " + timeout + " ms: " + builder.command().get(0));
+                }
+            } else {
+                process.waitFor();
+            }
+            // Any remaining descendants may keep the output stream open after the process has ended
+            pump.join(KILL_WAIT);
+            return process.exitValue();
+        } finally {
+            if (process.isAlive()) {
+                kill(process);
+            }
+            RUNNING.remove(process);
+        }
+    }
+
+    /**
+     * Kills the given process, and all of its descendants, forcibly. Descendants can only be
+     * found when running on Java 9 or later; on Java 8, only the process itself is killed.
+     */
+    static void kill(Process process) {
+        destroyDescendants(process);
+        process.destroyForcibly();
+    }
 
-        // Return the already ended process
-        return process;
+    /**
+     * Kills all descendants of the given process forcibly. This must be done before the process
+     * itself is killed, because orphaned processes can no longer be found. The process handle API
+     * is accessed by reflection, since it was introduced in Java 9.
+     */
+    private static void destroyDescendants(Process process) {
+        try {
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            Method destroyForcibly = handleClass.getMethod("destroyForcibly");
+            Object handle = Process.class.getMethod("toHandle").invoke(process);
+            Stream<?> descendants = (Stream<?>) handleClass.getMethod("descendants").invoke(handle);
+            descendants.forEach(descendant -> {
+                try {
+                    destroyForcibly.invoke(descendant);
+                } catch (ReflectiveOperationException ignore) {
+                    // Nothing more we can do
+                }
+            });
+        } catch (ReflectiveOperationException e) {
+            // Running on Java 8
+        }
     }
 
     /**
-     * Tears down the given process.
+     * Starts a daemon thread that reads the output of the given process line by line until
+     * the end of the stream, appending each line to {@code output} and passing it to {@code listener}.
      */
-    static void tearDownProcess(Process process) {
-        process.destroy();
+    private static Thread startPump(Process process, ProcessOutput output, Consumer<String> listener) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line);
+                    listener.accept(line);
+                }
+            } catch (IOException e) {
+                try {
+                    output.append(e.getMessage());
+                } catch (IOException ignore) {
+                    // Nothing more we can do
+                }
+            }
+        }, "fasm-output");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
     }
 
     /**
-     * Reads all output that is available from the given {@code process}, and returns this as a single string.
+     * Resolves the given {@code command} to an executable file, by searching the directories in the
+     * PATH environment variable. If the command contains a path, it is only resolved against the
+     * current directory. On Windows, the extensions in the PATHEXT environment variable are tried too.
      *
-     * @param process The process to read from.
-     * @return The process output.
+     * @param command The command to resolve.
+     * @return The resolved executable file, or {@code null} if it cannot be found.
      */
-    static String readOutput(Process process) {
-        StringBuilder builder = new StringBuilder();
+    static Path resolveCommand(String command) {
+        Path path = Paths.get(command);
+        if (path.getNameCount() > 1 || path.isAbsolute()) {
+            return findExecutable(path);
+        }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            while (reader.ready()) {
-                builder.append(reader.readLine()).append("\n");
+        String pathEnv = System.getenv("PATH");
+        if (pathEnv == null) {
+            return null;
+        }
+        for (String directory : pathEnv.split(Pattern.quote(File.pathSeparator))) {
+            if (!directory.isEmpty()) {
+                Path executable = findExecutable(Paths.get(directory).resolve(command));
+                if (executable != null) {
+                    return executable;
+                }
             }
-        } catch (IOException e) {
-            builder.append(e.getMessage()).append("\n");
         }
+        return null;
+    }
 
-        return builder.toString();
+    private static Path findExecutable(Path path) {
+        if (Files.isRegularFile(path) && Files.isExecutable(path)) {
+            return path.toAbsolutePath().normalize();
+        }
+        String pathExt = System.getenv("PATHEXT");
+        if (pathExt != null) {
+            for (String extension : pathExt.split(Pattern.quote(File.pathSeparator))) {
+                Path candidate = Paths.get(path + extension.toLowerCase());
+                if (Files.isRegularFile(candidate)) {
+                    return candidate.toAbsolutePath().normalize();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a string that identifies the given {@code compiler}, that is, a hash of the compiler
+     * executable, and the version information printed by the compiler when run without arguments.
+     *
+     * @param compiler The compiler command.
+     * @return A string that identifies the compiler binary and version.
+     */
+    static String getCompilerId(String compiler) throws IOException, InterruptedException, TimeoutException {
+        Path executable = resolveCommand(compiler);
+        String binary = (executable != null) ? FileUtils.hash(executable) : compiler;
+
+        try (ProcessOutput output = new ProcessOutput()) {
+            execute(new String[]{compiler}, output, line -> { }, COMPILER_ID_TIMEOUT);
+            String text = output.getText();
+            int index = text.indexOf('\n');
+            return binary + " " + ((index != -1) ? text.substring(0, index) : text).trim();
+        }
     }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * One of several shards that the included source files are divided into, so that a build can be
+ * split over several machines. The assignment of source files to shards is deterministic, so all
+ * machines agree on it, as long as they see the same source files and the same history.
+ * <p>
+ * Source files with a recorded compile time are assigned using the longest processing time first
+ * rule: the slowest file is assigned to the shard with the least total time so far, and so on,
+ * which makes the shards finish at about the same time. Source files without a recorded compile
+ * time are assigned by hashing their names, and are counted with the average compile time.
+ *
+ * @author Johan Dykstrom
+ */
+final class Shard {
+
+    private static final Pattern PATTERN_SHARD = Pattern.compile("(\\d+)/(\\d+)");
+
+    private final int index;
+    private final int count;
+
+    /**
+     * Creates a new shard.
+     *
+     * @param index The number of this shard, starting at 1.
+     * @param count The total number of shards.
+     */
+    Shard(int index, int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid shard: " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parses a shard on the form "i/n", where i is the number of the shard, starting at 1,
+     * and n is the total number of shards.
+     *
+     * @throws IllegalArgumentException If the value is not a valid shard.
+     */
+    static Shard parse(String value) {
+        Matcher matcher = PATTERN_SHARD.matcher(value.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid shard: " + value);
+        }
+        try {
+            return new Shard(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shard: " + value, e);
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the source files that belong to this shard, sorted by name.
+     *
+     * @param names All included source files, relative the source directory.
+     * @param durations Returns the recorded compile time of a source file, or -1 if not known.
+     * @return The source files that belong to this shard.
+     */
+    List<String> select(Collection<String> names, ToLongFunction<String> durations) {
+        // Sort the names, so the assignment does not depend on the order they were found in
+        TreeSet<String> sorted = new TreeSet<>(names);
+        Map<String, Long> known = new HashMap<>();
+        for (String name : sorted) {
+            long duration = durations.applyAsLong(name);
+            if (duration >= 0) {
+                known.put(name, duration);
+            }
+        }
+
+        Map<String, Integer> shards = new HashMap<>();
+        long[] loads = new long[count];
+
+        // Files without history are hashed, and counted with the average duration
+        long average = known.isEmpty() ? 1 : Math.max(1, known.values().stream().mapToLong(Long::longValue).sum() / known.size());
+        for (String name : sorted) {
+            if (!known.containsKey(name)) {
+                int shard = hash(name);
+                shards.put(name, shard);
+                loads[shard] += average;
+            }
+        }
+
+        // Files with history are assigned, slowest first, to the shard with the least load
+        List<String> slowestFirst = new ArrayList<>(known.keySet());
+        slowestFirst.sort(Comparator.comparing((String name) -> -known.get(name)).thenComparing(Comparator.naturalOrder()));
+        for (String name : slowestFirst) {
+            int shard = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[shard]) {
+                    shard = i;
+                }
+            }
+            shards.put(name, shard);
+            loads[shard] += known.get(name);
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String name : sorted) {
+            if (shards.get(name) == index - 1) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the shard, starting at 0, that the given source file hashes to. The name is hashed
+     * with forward slashes as separators, so the result does not depend on the platform.
+     */
+    int hash(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % count);
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A source scanner that returns a given list of files, instead of scanning a directory.
+ * Used in watch mode, to compile only the source files affected by a change.
+ *
+ * @author Johan Dykstrom
+ */
+final class SourceList extends SourceScanner {
+
+    private final Iterator<String> iterator;
+
+    /**
+     * Creates a new source list that returns the given filenames, relative the source directory.
+     */
+    SourceList(Collection<String> names) {
+        this.iterator = new ArrayList<>(names).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public String next() {
+        return iterator.next();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A directory scanner that finds the included files lazily, one at a time, instead of scanning
+ * the entire directory tree up front. This makes it possible to start working on the first files
+ * before the scan has finished, and keeps memory usage bounded, rather than growing with the number
+ * of files in the directory tree.
+ * <p>
+ * The scanner is configured like any other directory scanner, using {@code setupDirectoryScanner}
+ * on a file set. Files are matched using the same include and exclude patterns, default excludes,
+ * and selectors. Only {@link #hasNext()} and {@link #next()} may be used to get the included files;
+ * the scan methods inherited from {@link DirectoryScanner} are not affected by this class.
+ *
+ * @author Johan Dykstrom
+ */
+abstract class SourceScanner extends DirectoryScanner implements Iterator<String>, Closeable {
+
+    /**
+     * Returns the attributes of the file last returned by {@link #next()}, if they were read
+     * by the scan, or {@code null} otherwise.
+     */
+    BasicFileAttributes getAttributes() {
+        return null;
+    }
+
+    /**
+     * Stops the scan, and releases any resources held by the scanner.
+     */
+    @Override
+    public void close() {
+        // Nothing to release by default
+    }
+
+    /**
+     * Prepares the include and exclude patterns before the scan starts.
+     */
+    void preparePatterns() {
+        // Like in DirectoryScanner.scan, no includes means include everything
+        if (includes == null) {
+            includes = new String[]{SelectorUtils.DEEP_TREE_MATCH};
+        }
+        if (excludes == null) {
+            excludes = new String[0];
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given file, relative the base directory, is included.
+     */
+    boolean isIncludedFile(String name, File file) {
+        return isIncluded(name) && !isExcluded(name) && isSelected(name, file);
+    }
+
+    /**
+     * Returns {@code true} if the given directory, relative the base directory, should be scanned,
+     * that is, if any include pattern may match a file in the directory, and not all files in the
+     * directory are excluded by an exclude pattern that ends with "**", for example the default
+     * exclude pattern "**&#47;.git/**".
+     */
+    boolean isScannedDirectory(String name) {
+        boolean mayContainIncluded = Arrays.stream(includes).anyMatch(pattern -> matchPatternStart(pattern, name, isCaseSensitive()));
+        if (!mayContainIncluded) {
+            return false;
+        }
+        String suffix = File.separator + "**";
+        return Arrays.stream(excludes)
+                .filter(pattern -> pattern.endsWith(suffix))
+                .noneMatch(pattern -> matchPath(pattern.substring(0, pattern.length() - suffix.length()), name, isCaseSensitive()));
+    }
+}
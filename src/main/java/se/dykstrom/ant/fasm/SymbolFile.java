@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the symbolic information file, or .fas file, that fasm writes when run with the -s option.
+ * The preprocessed source in the symbolic information file records the source file of each line,
+ * so the source files read by fasm, including files included by macros, or by paths built from
+ * environment variables, can be found exactly. In addition, the references of all {@code file}
+ * directives are collected, together with the source file they were found in, since fasm resolves
+ * these while assembling, and not while preprocessing.
+ *
+ * @author Johan Dykstrom
+ */
+final class SymbolFile {
+
+    /** The signature of a symbolic information file, "fas" followed by 1Ah. */
+    static final int SIGNATURE = 0x1A736166;
+
+    /** The minimum length of a header that includes the preprocessed source. */
+    private static final int MIN_HEADER_LENGTH = 40;
+
+    private static final int LINE_HEADER_LENGTH = 16;
+    private static final int MACRO_LINE = 0x80000000;
+
+    private static final int TOKEN_END = 0x00;
+    private static final int TOKEN_SYMBOL = 0x1A;
+    private static final int TOKEN_STRING = 0x22;
+    private static final int TOKEN_IGNORED = 0x3B;
+
+    private static final String DIRECTIVE_FILE = "file";
+
+    private final Set<Path> sourceFiles;
+    private final List<FileReference> fileReferences;
+
+    SymbolFile(Set<Path> sourceFiles, List<FileReference> fileReferences) {
+        this.sourceFiles = Collections.unmodifiableSet(sourceFiles);
+        this.fileReferences = Collections.unmodifiableList(fileReferences);
+    }
+
+    /**
+     * Returns the source files read by fasm, the main source file first.
+     */
+    Set<Path> getSourceFiles() {
+        return sourceFiles;
+    }
+
+    /**
+     * Returns the references of all {@code file} directives.
+     */
+    List<FileReference> getFileReferences() {
+        return fileReferences;
+    }
+
+    /**
+     * Reads the given symbolic information file.
+     *
+     * @param fasFile The symbolic information file to read.
+     * @return The source files and file references found in the symbolic information file.
+     * @throws IOException If the file cannot be read, or is not a valid symbolic information file.
+     */
+    static SymbolFile read(Path fasFile) throws IOException {
+        return read(ByteBuffer.wrap(Files.readAllBytes(fasFile)));
+    }
+
+    /**
+     * Reads a symbolic information file from the given buffer.
+     *
+     * @throws IOException If the buffer does not contain a valid symbolic information file.
+     */
+    static SymbolFile read(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt(0) != SIGNATURE) {
+                throw new IOException("Not a symbolic information file");
+            }
+            int headerLength = buffer.getShort(6) & 0xFFFF;
+            if (headerLength < MIN_HEADER_LENGTH) {
+                throw new IOException("Unsupported symbolic information file version " + buffer.get(4) + "." + buffer.get(5));
+            }
+            int inputFileName = buffer.getInt(8);
+            int stringsOffset = buffer.getInt(16);
+            int sourceOffset = buffer.getInt(32);
+            int sourceLength = buffer.getInt(36);
+            ByteBuffer strings = slice(buffer, stringsOffset, buffer.getInt(20));
+            ByteBuffer source = slice(buffer, sourceOffset, sourceLength);
+
+            Path mainFile = Paths.get(readString(strings, inputFileName));
+            Set<Path> sourceFiles = new LinkedHashSet<>();
+            sourceFiles.add(mainFile);
+            List<FileReference> fileReferences = new ArrayList<>();
+
+            int position = 0;
+            while (position + LINE_HEADER_LENGTH <= sourceLength) {
+                int line = position;
+                boolean macro = (source.getInt(line + 4) & MACRO_LINE) != 0;
+                if (!macro) {
+                    sourceFiles.add(getSourceFile(source, line, mainFile));
+                }
+
+                position += LINE_HEADER_LENGTH;
+                boolean fileDirective = false;
+                while (true) {
+                    int token = source.get(position++) & 0xFF;
+                    if (token == TOKEN_END) {
+                        break;
+                    } else if (token == TOKEN_SYMBOL || token == TOKEN_IGNORED) {
+                        int length = source.get(position) & 0xFF;
+                        String symbol = readString(source, position + 1, length);
+                        position += 1 + length;
+                        fileDirective = token == TOKEN_SYMBOL && DIRECTIVE_FILE.equalsIgnoreCase(symbol);
+                    } else if (token == TOKEN_STRING) {
+                        int length = source.getInt(position);
+                        if (fileDirective) {
+                            fileReferences.add(new FileReference(getSourceFile(source, line, mainFile), readString(source, position + 4, length)));
+                        }
+                        position += 4 + length;
+                        fileDirective = false;
+                    } else {
+                        fileDirective = false;
+                    }
+                }
+            }
+            return new SymbolFile(sourceFiles, fileReferences);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Invalid symbolic information file", e);
+        }
+    }
+
+    /**
+     * Returns the source file of the given preprocessed line. Lines generated by a macro
+     * belong to the source file of the line that invoked the macro.
+     */
+    private static Path getSourceFile(ByteBuffer source, int line, Path mainFile) {
+        // Limit the number of steps, in case the file is corrupt
+        for (int i = 0; i < source.limit() / LINE_HEADER_LENGTH && (source.getInt(line + 4) & MACRO_LINE) != 0; i++) {
+            line = source.getInt(line + 8);
+        }
+        int fileName = source.getInt(line);
+        return (fileName == 0) ? mainFile : Paths.get(readString(source, fileName));
+    }
+
+    /**
+     * Returns a view of {@code length} bytes of the given buffer, starting at {@code offset}.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+            throw new IndexOutOfBoundsException("Table at " + offset + " with length " + length + " is outside file");
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset).limit(offset + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads a zero-terminated string, starting at the given offset.
+     */
+    private static String readString(ByteBuffer buffer, int offset) {
+        int end = offset;
+        while (buffer.get(end) != 0) {
+            end++;
+        }
+        return readString(buffer, offset, end - offset);
+    }
+
+    /**
+     * Reads a string of {@code length} bytes, starting at the given offset.
+     * Strings are stored in the character set of the platform fasm runs on.
+     */
+    private static String readString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, Charset.defaultCharset());
+    }
+
+    /**
+     * A reference found in a {@code file} directive, and the source file it was found in.
+     */
+    static final class FileReference {
+
+        private final Path sourceFile;
+        private final String reference;
+
+        FileReference(Path sourceFile, String reference) {
+            this.sourceFile = sourceFile;
+            this.reference = reference;
+        }
+
+        /**
+         * Returns the source file the directive was found in.
+         */
+        Path getSourceFile() {
+            return sourceFile;
+        }
+
+        /**
+         * Returns the referenced file, as written in the directive.
+         */
+        String getReference() {
+            return reference;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A build variant, that is, a configuration that all source files are compiled with, to a separate
+ * destination directory. Attributes that are not set on the variant are taken from the task, and
+ * the compiler args of the variant are added to those of the task.
+ *
+ * @author Johan Dykstrom
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class Variant {
+
+    private String name;
+    private String destDir;
+    private Integer memory;
+    private Integer passes;
+    private final List<CompilerArg> compilerArgs = new ArrayList<>();
+
+    /**
+     * Sets the optional name of the variant, that is used in log messages, and in the report file.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of the variant, or {@code null} if not set.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the destination directory of the variant.
+     */
+    public void setDestDir(String destDir) {
+        this.destDir = destDir;
+    }
+
+    /**
+     * Returns the destination directory of the variant, or {@code null} if not set.
+     */
+    public String getDestDir() {
+        return destDir;
+    }
+
+    /**
+     * Sets the optional memory attribute of the variant.
+     */
+    public void setMemory(Integer memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Returns the memory attribute of the variant, or {@code null} if not set.
+     */
+    public Integer getMemory() {
+        return memory;
+    }
+
+    /**
+     * Sets the optional passes attribute of the variant.
+     */
+    public void setPasses(Integer passes) {
+        this.passes = passes;
+    }
+
+    /**
+     * Returns the passes attribute of the variant, or {@code null} if not set.
+     */
+    public Integer getPasses() {
+        return passes;
+    }
+
+    /**
+     * Adds a nested compiler argument.
+     */
+    public void addConfiguredCompilerArg(CompilerArg compilerArg) {
+        compilerArgs.add(compilerArg);
+    }
+
+    /**
+     * Returns the compiler arguments of the variant.
+     */
+    public List<CompilerArg> getCompilerArgs() {
+        return compilerArgs;
+    }
+}
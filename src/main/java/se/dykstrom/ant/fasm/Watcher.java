@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches directories for changes using a {@link WatchService}. Directories can be watched alone,
+ * or together with all their subdirectories, in which case new subdirectories are watched as soon
+ * as they are created. Changes are collected in bursts: after the first change, the watcher waits
+ * until no more changes have been seen for a quiet period, so that a single save or checkout that
+ * touches many files results in a single set of changes.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Johan Dykstrom
+ */
+final class Watcher implements Closeable {
+
+    private final WatchService watchService;
+
+    /** Maps each watch key to the directory it watches. */
+    private final Map<WatchKey, WatchedDirectory> keys = new HashMap<>();
+
+    /** All watched directories. */
+    private final Set<Path> directories = new LinkedHashSet<>();
+
+    private boolean overflow;
+    private long firstChangeTime;
+
+    Watcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watches the given directory, but not its subdirectories. Directories that are already
+     * watched, or that do not exist, are ignored.
+     */
+    void register(Path directory) throws IOException {
+        register(directory.toAbsolutePath().normalize(), false);
+    }
+
+    /**
+     * Watches the given directory, and all of its subdirectories.
+     */
+    void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root.toAbsolutePath().normalize(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir, true);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register(Path directory, boolean recursive) throws IOException {
+        if (!directories.contains(directory) && Files.isDirectory(directory)) {
+            WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            keys.put(key, new WatchedDirectory(directory, recursive));
+            directories.add(directory);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given directory is watched.
+     */
+    boolean isWatched(Path directory) {
+        return directories.contains(directory.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Waits for the next burst of changes, and returns the absolute paths of all changed files.
+     * The burst ends when no more changes have been seen for {@code quietPeriod} milliseconds.
+     * Files in new subdirectories of a recursively watched directory are returned as changed.
+     *
+     * @param quietPeriod The time in milliseconds without changes that ends a burst.
+     * @return The changed files.
+     * @throws InterruptedException If interrupted while waiting for changes.
+     * @throws IOException If a new subdirectory cannot be watched.
+     */
+    Set<Path> awaitChanges(long quietPeriod) throws InterruptedException, IOException {
+        Set<Path> changed = new LinkedHashSet<>();
+        overflow = false;
+        WatchKey key = watchService.take();
+        firstChangeTime = System.nanoTime();
+        while (key != null) {
+            collect(key, changed);
+            key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS);
+        }
+        return changed;
+    }
+
+    /**
+     * Returns {@code true} if changes were lost in the last burst, because they arrived faster
+     * than they could be handled. If so, the watched directories must be scanned again.
+     */
+    boolean isOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Returns the value of {@link System#nanoTime()} when the first change of the last burst was seen.
+     */
+    long getFirstChangeTime() {
+        return firstChangeTime;
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) throws IOException {
+        WatchedDirectory watched = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path file = watched.directory.resolve((Path) event.context());
+            if (watched.recursive && event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+                // Files may have been created in the new directory before it was watched
+                registerTree(file);
+                try (Stream<Path> files = Files.walk(file)) {
+                    files.filter(Files::isRegularFile).forEach(changed::add);
+                }
+            } else {
+                changed.add(file);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+            directories.remove(watched.directory);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * A watched directory, and whether its new subdirectories are watched too.
+     */
+    private static final class WatchedDirectory {
+
+        private final Path directory;
+        private final boolean recursive;
+
+        private WatchedDirectory(Path directory, boolean recursive) {
+            this.directory = directory;
+            this.recursive = recursive;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static se.dykstrom.ant.fasm.WorkerProtocol.*;
+
+/**
+ * A client of a {@link WorkerServer}, that sends compile requests to a worker, usually on
+ * another machine, using the {@link WorkerProtocol}.
+ *
+ * @author Johan Dykstrom
+ */
+final class WorkerClient {
+
+    /** The maximum time in milliseconds to wait for a connection to the worker. */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * The maximum time in milliseconds to wait for the next message from the worker. While the
+     * compilation is queued or running, the worker sends keep-alive messages more often than this.
+     */
+    private static final int READ_TIMEOUT = 10000;
+
+    /** The time in milliseconds between checks for interrupts while waiting for a reply. */
+    private static final int POLL_INTERVAL = 200;
+
+    /** Matches an endpoint on the form "host:port", where an IPv6 host is enclosed in brackets. */
+    private static final Pattern PATTERN_ENDPOINT = Pattern.compile("\\[?([^\\[\\]]+?)]?:(\\d+)");
+
+    private final String host;
+    private final int port;
+
+    WorkerClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Parses a worker endpoint on the form "host:port".
+     *
+     * @throws IllegalArgumentException If the endpoint is not valid.
+     */
+    static WorkerClient parse(String endpoint) {
+        Matcher matcher = PATTERN_ENDPOINT.matcher(endpoint.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid worker: " + endpoint);
+        }
+        int port = Integer.parseInt(matcher.group(2));
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid worker: " + endpoint);
+        }
+        return new WorkerClient(matcher.group(1), port);
+    }
+
+    /**
+     * Returns the number of compilations the worker can run at the same time.
+     *
+     * @throws IOException If the worker cannot be reached.
+     */
+    int getSlots() throws IOException {
+        try (Socket socket = connect(CONNECT_TIMEOUT);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            out.writeInt(VERSION);
+            out.writeByte(REQUEST_INFO);
+            out.flush();
+            return in.readInt();
+        }
+    }
+
+    /**
+     * Compiles the given source file on the worker. The compiler output is kept until the compilation
+     * has ended, and then each line is appended to {@code output}, and passed to {@code listener}.
+     * If the worker fails before that, the output is discarded, so nothing has been reported when
+     * the caller falls back to compiling locally. If the compilation succeeds, the destination file
+     * is written. If the calling thread is interrupted while waiting for the worker, the compilation
+     * is cancelled, and the worker kills the compile process.
+     *
+     * @param srcFile The source file.
+     * @param files All files the compilation needs, including the source file.
+     * @param options The compiler options.
+     * @param includePaths The include paths that fasm should search for included files.
+     * @param destFile The destination file to write.
+     * @param output Collects the compiler output.
+     * @param listener Receives each line of output when the compilation has ended.
+     * @param timeout The maximum time in milliseconds the compilation may take, or 0 to wait forever.
+     * @return The exit value of the compiler.
+     * @throws IOException If the worker cannot be reached, or fails to run the compiler.
+     * @throws InterruptedException If interrupted while waiting for the worker.
+     * @throws TimeoutException If the compilation did not end in time.
+     */
+    int compile(Path srcFile, Collection<Path> files, List<String> options, List<Path> includePaths, Path destFile,
+                ProcessOutput output, Consumer<String> listener, long timeout)
+            throws IOException, InterruptedException, TimeoutException {
+        try (Socket socket = connect(READ_TIMEOUT);
+             ProcessOutput pending = new ProcessOutput();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            out.writeInt(VERSION);
+            out.writeByte(REQUEST_COMPILE);
+            writeString(out, System.getProperty("user.dir"));
+            out.writeInt(includePaths.size());
+            for (Path includePath : includePaths) {
+                writeString(out, includePath.toAbsolutePath().normalize().toString());
+            }
+            out.writeInt(options.size());
+            for (String option : options) {
+                writeString(out, option);
+            }
+            writeString(out, srcFile.toAbsolutePath().normalize().toString());
+            out.writeInt(files.size());
+            for (Path file : files) {
+                writeString(out, file.toAbsolutePath().normalize().toString());
+                writeBytes(out, Files.readAllBytes(file));
+            }
+            out.writeLong(timeout);
+            out.flush();
+
+            while (true) {
+                byte type = readReplyType(socket, in, out);
+                if (type == REPLY_QUEUED || type == REPLY_RUNNING) {
+                    // The worker is still alive, and the read timeout starts over
+                    continue;
+                } else if (type == REPLY_OUTPUT) {
+                    pending.append(readString(in));
+                } else if (type == REPLY_EXIT) {
+                    int exitValue = in.readInt();
+                    if (exitValue == 0) {
+                        Files.write(destFile, readBytes(in));
+                    }
+                    deliver(pending, output, listener);
+                    return exitValue;
+                } else if (type == REPLY_TIMEOUT) {
+                    deliver(pending, output, listener);
+                    throw new TimeoutException("Compilation did not end within " + timeout + " ms on worker " + this);
+                } else if (type == REPLY_ERROR) {
+                    throw new IOException(readString(in));
+                } else {
+                    throw new IOException("Invalid reply type: " + type);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the output kept during the compilation to {@code output}, and passes each line to {@code listener}.
+     */
+    private static void deliver(ProcessOutput pending, ProcessOutput output, Consumer<String> listener) throws IOException {
+        try {
+            pending.forEachLine(line -> {
+                try {
+                    output.append(line);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                listener.accept(line);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reads the type of the next reply, checking for interrupts while waiting for it. Only the first
+     * byte of a reply is read in short slices, so no part of a reply is lost when a slice expires.
+     * If the calling thread is interrupted, the compilation is cancelled on the worker. If no reply
+     * arrives within the read timeout, the worker is considered dead.
+     */
+    private byte readReplyType(Socket socket, DataInputStream in, DataOutputStream out)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        socket.setSoTimeout(POLL_INTERVAL);
+        try {
+            while (true) {
+                try {
+                    return in.readByte();
+                } catch (SocketTimeoutException e) {
+                    if (Thread.interrupted()) {
+                        cancel(out);
+                        throw new InterruptedException("Compilation on worker " + this + " interrupted");
+                    }
+                    if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT)) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            socket.setSoTimeout(READ_TIMEOUT);
+        }
+    }
+
+    /**
+     * Asks the worker to cancel the compilation, and kill the compile process.
+     */
+    private static void cancel(DataOutputStream out) {
+        try {
+            out.writeByte(REQUEST_CANCEL);
+            out.flush();
+        } catch (IOException ignore) {
+            // The worker will notice when the connection is closed
+        }
+    }
+
+    /**
+     * Connects to the worker.
+     *
+     * @param readTimeout The maximum time in milliseconds to wait for data.
+     */
+    private Socket connect(int readTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the free compile slots of a build, that is, a number of local slots, and the
+ * slots of the remote workers. Local slots are handed out first, since local compilations do not
+ * have to send any files, and remote slots are handed out round-robin over the workers, so the
+ * load is spread evenly. The pool should have as many threads as there are slots, so a free slot
+ * can always be found.
+ *
+ * @author Johan Dykstrom
+ */
+final class WorkerPool {
+
+    private final Deque<WorkerClient> freeRemote = new ArrayDeque<>();
+    private final Set<WorkerClient> failed = new HashSet<>();
+    private final int slots;
+    private int freeLocal;
+
+    /**
+     * Creates a new worker pool.
+     *
+     * @param localSlots The number of local slots.
+     * @param workers Maps each remote worker to its number of slots.
+     */
+    WorkerPool(int localSlots, Map<WorkerClient, Integer> workers) {
+        this.freeLocal = localSlots;
+        int remoteSlots = 0;
+        int maxSlots = workers.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+        for (int i = 0; i < maxSlots; i++) {
+            for (Map.Entry<WorkerClient, Integer> entry : workers.entrySet()) {
+                if (i < entry.getValue()) {
+                    freeRemote.add(entry.getKey());
+                    remoteSlots++;
+                }
+            }
+        }
+        this.slots = localSlots + remoteSlots;
+    }
+
+    /**
+     * Returns the total number of slots, local and remote.
+     */
+    int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Acquires a slot, waiting until one is free.
+     *
+     * @return The worker that owns the slot, or {@code null} if it is a local slot.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    synchronized WorkerClient acquire() throws InterruptedException {
+        while (freeLocal == 0 && freeRemote.isEmpty()) {
+            wait();
+        }
+        if (freeLocal > 0) {
+            freeLocal--;
+            return null;
+        }
+        return freeRemote.remove();
+    }
+
+    /**
+     * Releases a slot acquired by {@link #acquire()}. The slots of a failed worker are not handed out again.
+     *
+     * @param worker The worker that owns the slot, or {@code null} if it is a local slot.
+     */
+    synchronized void release(WorkerClient worker) {
+        if (worker == null) {
+            freeLocal++;
+        } else if (!failed.contains(worker)) {
+            freeRemote.add(worker);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Marks the given worker as failed, so its slots are not handed out again.
+     */
+    synchronized void fail(WorkerClient worker) {
+        failed.add(worker);
+        freeRemote.removeIf(worker::equals);
+    }
+}
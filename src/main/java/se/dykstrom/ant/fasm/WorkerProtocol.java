@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Constants and utility methods for the protocol spoken between a {@link WorkerClient} and a
+ * {@link WorkerServer}. Each request is sent on a new connection, and starts with the protocol
+ * version, followed by the request type:
+ * <ul>
+ * <li>{@link #REQUEST_INFO}: the server replies with the number of compilations it can run at
+ * the same time.</li>
+ * <li>{@link #REQUEST_COMPILE}: the client sends the working directory, the include paths, the
+ * compiler options, which must be {@linkplain #isAllowed(List) allowed}, the source file, and the
+ * contents of the source file and all files it includes. While the compilation waits for a free
+ * compile slot, the server sends a {@link #REPLY_QUEUED} message every few seconds, and while the
+ * compiler runs, a {@link #REPLY_RUNNING} message, so the client can tell a busy server from a dead
+ * one. The server also replies with the compiler output, one {@link #REPLY_OUTPUT} message per
+ * line, as the lines arrive, followed by one of the final messages {@link #REPLY_EXIT}, with the
+ * exit value and, if the compilation succeeded, the contents of the destination file,
+ * {@link #REPLY_TIMEOUT}, or {@link #REPLY_ERROR}, with an error message. While waiting for the
+ * final message, the client may send {@link #REQUEST_CANCEL}, or close the connection, to make the
+ * server kill the compile process.</li>
+ * </ul>
+ * Files are identified by their absolute paths on the client machine. Strings are sent as UTF-8,
+ * preceded by their length, so they are not limited in size like modified UTF-8.
+ *
+ * @author Johan Dykstrom
+ */
+final class WorkerProtocol {
+
+    /** The version of the protocol. */
+    static final int VERSION = 3;
+
+    static final byte REQUEST_INFO = 'I';
+    static final byte REQUEST_COMPILE = 'C';
+    static final byte REQUEST_CANCEL = 'K';
+
+    static final byte REPLY_QUEUED = 'Q';
+    static final byte REPLY_RUNNING = 'R';
+    static final byte REPLY_OUTPUT = 'O';
+    static final byte REPLY_EXIT = 'X';
+    static final byte REPLY_TIMEOUT = 'T';
+    static final byte REPLY_ERROR = 'E';
+
+    /** Matches the compiler options that may be sent in a compile request, each followed by its value. */
+    private static final Pattern PATTERN_OPTION = Pattern.compile("-[mp]\\s\\d+|-d\\s[^=\\s]+=.*");
+
+    /** The maximum size in bytes of a single file or string, to guard against corrupt messages. */
+    private static final int MAX_LENGTH = 256 * 1024 * 1024;
+
+    private WorkerProtocol() { }
+
+    /**
+     * Returns {@code true} if the given compiler options may be sent in a compile request. Only the
+     * options that set the memory, the number of passes, and symbolic variables are allowed, each
+     * followed by its value, since other options could make the compiler write files outside the
+     * sandbox directory on the server.
+     */
+    static boolean isAllowed(List<String> options) {
+        if (options.size() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < options.size(); i += 2) {
+            if (!PATTERN_OPTION.matcher(options.get(i) + " " + options.get(i + 1)).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given string, preceded by its length in bytes.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the given bytes, preceded by their length.
+     */
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads the bytes written by {@link #writeBytes(DataOutputStream, byte[])}.
+     */
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Invalid length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads and checks the protocol version.
+     */
+    static void readVersion(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static se.dykstrom.ant.fasm.WorkerProtocol.*;
+
+/**
+ * A server that accepts compile requests from fasm tasks on other machines, or in other JVMs,
+ * and compiles them locally, using the {@link WorkerProtocol}. Each compile request is run in
+ * its own sandbox directory, in which the files sent by the client are written to the same paths,
+ * relative a directory in the sandbox, as they have on the client. Relative includes, and includes
+ * found in the include paths of the client, are thereby resolved as they would have been on the
+ * client. The destination file is written to another directory in the sandbox, and only compiler
+ * options that cannot make the compiler write any other files are accepted. The compiler output is
+ * forwarded to the client line by line, with the sandbox directory removed from any paths, and the
+ * sandbox directory is deleted after the compilation. If the client cancels the compilation, or goes
+ * away, the compile process and all of its descendants are killed.
+ * <p>
+ * The server does not authenticate its clients, so it should only be reachable from trusted machines.
+ *
+ * @author Johan Dykstrom
+ */
+final class WorkerServer implements Closeable {
+
+    /** The time in milliseconds between keep-alive messages sent while a compilation is queued or running. */
+    private static final long KEEP_ALIVE_INTERVAL = 2000;
+
+    private final String compiler;
+    private final int slots;
+    private final Semaphore compileSlots;
+    private final Consumer<String> log;
+    private final AtomicInteger count = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fasm-server-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ServerSocket serverSocket;
+
+    /**
+     * Creates a new worker server.
+     *
+     * @param compiler The compiler command.
+     * @param slots The maximum number of compilations to run at the same time.
+     * @param log Receives log messages.
+     */
+    WorkerServer(String compiler, int slots, Consumer<String> log) {
+        this.compiler = compiler;
+        this.slots = slots;
+        this.compileSlots = new Semaphore(slots, true);
+        this.log = log;
+    }
+
+    /**
+     * Starts accepting connections on the given address and port, in a background thread.
+     *
+     * @param address The address to bind to.
+     * @param port The port to listen on, or 0 to use any free port.
+     * @return The port the server listens on.
+     * @throws IOException If the server socket cannot be opened.
+     */
+    int start(InetAddress address, int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(address, port));
+        executor.execute(this::acceptConnections);
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, and stops all compilations in progress.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.accept("Cannot accept connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a single request, and closes the connection.
+     */
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+            // The compiler output is sent line by line, as it arrives
+            connection.setTcpNoDelay(true);
+            readVersion(in);
+            byte type = in.readByte();
+            if (type == REQUEST_INFO) {
+                out.writeInt(slots);
+            } else if (type == REQUEST_COMPILE) {
+                compile(in, out);
+            } else {
+                throw new IOException("Invalid request type: " + type);
+            }
+            out.flush();
+        } catch (IOException e) {
+            log.accept("Request from " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            log.accept("Request from " + socket.getRemoteSocketAddress() + " cancelled");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a compile request, compiles the source file in a new sandbox directory, and replies with the result.
+     */
+    private void compile(DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+        Path sandbox = Files.createTempDirectory("fasm-sandbox-");
+        try {
+            // The files of the client, and the output of the compiler, are kept apart, so they cannot collide
+            Path filesDir = sandbox.resolve("files");
+            Path outDir = sandbox.resolve("out");
+            Path workingDir = toSandboxPath(filesDir, readString(in));
+            List<String> includePaths = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                includePaths.add(toSandboxPath(filesDir, readString(in)).toString());
+            }
+            List<String> options = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                options.add(readString(in));
+            }
+            Path srcFile = toSandboxPath(filesDir, readString(in));
+            for (int i = in.readInt(); i > 0; i--) {
+                Path file = toSandboxPath(filesDir, readString(in));
+                Files.createDirectories(file.getParent());
+                Files.write(file, readBytes(in));
+            }
+            long timeout = in.readLong();
+
+            // Other options could make the compiler write files outside the sandbox directory
+            if (!isAllowed(options)) {
+                out.writeByte(REPLY_ERROR);
+                writeString(out, "Compiler options not allowed on worker: " + String.join(" ", options));
+                return;
+            }
+            Path destFile = outDir.resolve(srcFile.getFileName() + ".out").normalize();
+            if (!destFile.getParent().equals(outDir)) {
+                throw new IOException("Invalid source file: " + srcFile.getFileName());
+            }
+            Files.createDirectories(outDir);
+            Files.createDirectories(workingDir);
+            List<String> command = new ArrayList<>();
+            command.add(compiler);
+            command.addAll(options);
+            command.add(srcFile.toString());
+            command.add(destFile.toString());
+
+            ProcessBuilder builder = new ProcessBuilder(command).directory(workingDir.toFile());
+            builder.environment().put("INCLUDE", String.join(";", includePaths));
+            String prefix = filesDir.toString();
+            try (ProcessOutput output = new ProcessOutput()) {
+                int exitValue;
+                CancelWatcher watcher = new CancelWatcher(in);
+                try {
+                    exitValue = compileSlotted(builder, output, line -> reply(out, line.replace(prefix, "")), timeout, out);
+                } finally {
+                    watcher.stop();
+                }
+                synchronized (out) {
+                    out.writeByte(REPLY_EXIT);
+                    out.writeInt(exitValue);
+                    if (exitValue == 0) {
+                        writeBytes(out, Files.readAllBytes(destFile));
+                    }
+                }
+            } catch (TimeoutException e) {
+                synchronized (out) {
+                    out.writeByte(REPLY_TIMEOUT);
+                }
+            } catch (IOException e) {
+                synchronized (out) {
+                    out.writeByte(REPLY_ERROR);
+                    writeString(out, e.getMessage());
+                }
+            }
+        } finally {
+            deleteRecursively(sandbox);
+        }
+    }
+
+    /**
+     * Executes the compile process when a compile slot is available. While waiting for a compile slot,
+     * and while the compile process runs, keep-alive messages are sent to the client, so a long wait,
+     * or a long compilation, does not trip the read timeout of the client.
+     */
+    private int compileSlotted(ProcessBuilder builder, ProcessOutput output, Consumer<String> listener, long timeout,
+                               DataOutputStream out) throws IOException, InterruptedException, TimeoutException {
+        while (!compileSlots.tryAcquire(KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS)) {
+            keepAlive(out, REPLY_QUEUED);
+        }
+        KeepAliveSender sender = new KeepAliveSender(out);
+        try {
+            return ProcessUtils.execute(builder, output, listener, timeout, spawnTime -> { });
+        } finally {
+            sender.stop();
+            compileSlots.release();
+        }
+    }
+
+    /**
+     * Watches the connection while a compilation is running, and interrupts the thread running the
+     * compilation if the client cancels it, or closes the connection. The interrupt makes
+     * {@link ProcessUtils} kill the compile process. No interrupts are delivered after the watcher
+     * has been stopped.
+     */
+    private final class CancelWatcher {
+
+        private final Thread thread = Thread.currentThread();
+        private boolean stopped;
+
+        private CancelWatcher(DataInputStream in) {
+            executor.execute(() -> {
+                try {
+                    // The client only sends a cancel request, so any data, or the end of the stream, means cancel
+                    in.readByte();
+                } catch (IOException ignore) {
+                    // The client has gone away, or the connection has been closed after the compilation
+                }
+                interrupt();
+            });
+        }
+
+        private synchronized void interrupt() {
+            if (!stopped) {
+                thread.interrupt();
+            }
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+        }
+    }
+
+    /**
+     * Sends keep-alive messages to the client while the compile process runs, since the compiler
+     * may run for a long time without printing anything. No messages are sent after the sender
+     * has been stopped.
+     */
+    private final class KeepAliveSender {
+
+        private boolean stopped;
+
+        private KeepAliveSender(DataOutputStream out) {
+            executor.execute(() -> {
+                synchronized (this) {
+                    try {
+                        while (!stopped) {
+                            wait(KEEP_ALIVE_INTERVAL);
+                            if (!stopped) {
+                                keepAlive(out, REPLY_RUNNING);
+                            }
+                        }
+                    } catch (InterruptedException ignore) {
+                        // The server is closing
+                    }
+                }
+            });
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Tells the client that the compilation is still queued, or still running.
+     */
+    private static void keepAlive(DataOutputStream out, byte type) {
+        try {
+            synchronized (out) {
+                out.writeByte(type);
+                out.flush();
+            }
+        } catch (IOException ignore) {
+            // The client has gone away, which the cancel watcher will notice
+        }
+    }
+
+    /**
+     * Sends a line of output to the client, and flushes it, so the client gets it as it arrives.
+     */
+    private static void reply(DataOutputStream out, String line) {
+        try {
+            synchronized (out) {
+                out.writeByte(REPLY_OUTPUT);
+                writeString(out, line);
+                out.flush();
+            }
+        } catch (IOException ignore) {
+            // The client has gone away, which will be noticed when the final reply is sent
+        }
+    }
+
+    /**
+     * Returns the path in the sandbox directory that corresponds to the given absolute path on the client.
+     *
+     * @throws IOException If the path is not absolute, or would end up outside the sandbox directory.
+     */
+    static Path toSandboxPath(Path sandbox, String clientPath) throws IOException {
+        Path path = Paths.get(clientPath).normalize();
+        if (!path.isAbsolute()) {
+            throw new IOException("Not an absolute path: " + clientPath);
+        }
+        // On Windows, the root includes the drive letter, which becomes a directory in the sandbox
+        String root = path.getRoot().toString().replaceAll("[^A-Za-z0-9]", "");
+        Path result = sandbox.resolve(root).resolve(path.getRoot().relativize(path).toString()).normalize();
+        if (!result.startsWith(sandbox)) {
+            throw new IOException("Path outside sandbox: " + clientPath);
+        }
+        return result;
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException ignore) {
+            // The operating system will clean up the temporary directory eventually
+        }
+    }
+}
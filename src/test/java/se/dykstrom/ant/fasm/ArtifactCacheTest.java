@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class ArtifactCacheTest {
+
+    private static final String COMPILER_ID = "0123456789abcdef flat assembler  version 1.73.30";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cacheDir;
+    private Path srcFile;
+    private Path destFile;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = folder.getRoot().toPath().resolve("cache");
+        srcFile = folder.newFile("main.asm").toPath();
+        destFile = folder.getRoot().toPath().resolve("main.bin");
+        Files.write(srcFile, singletonList("db 0"));
+    }
+
+    @Test
+    public void testGetKey() throws Exception {
+        Path copy = folder.newFolder("copy").toPath().resolve("other.asm");
+        Files.copy(srcFile, copy);
+        List<String> options = Arrays.asList("-p", "10");
+
+        String key = ArtifactCache.getKey(srcFile, singletonList(srcFile), COMPILER_ID, options);
+
+        // The same contents in another file gives the same key
+        assertEquals(key, ArtifactCache.getKey(copy, singletonList(copy), COMPILER_ID, options));
+        // Other options, or another compiler, gives another key
+        assertNotEquals(key, ArtifactCache.getKey(srcFile, singletonList(srcFile), COMPILER_ID, emptyList()));
+        assertNotEquals(key, ArtifactCache.getKey(srcFile, singletonList(srcFile), "other", options));
+    }
+
+    @Test
+    public void testGetKey_Hasher() throws Exception {
+        Path incFile = folder.getRoot().toPath().resolve("defs.inc");
+        Files.write(incFile, singletonList("ARCH = 64"));
+        List<Path> hashed = new ArrayList<>();
+
+        String key = ArtifactCache.getKey(srcFile, Arrays.asList(srcFile, incFile), COMPILER_ID, emptyList(), file -> {
+            hashed.add(file);
+            return FileUtils.hash(file);
+        });
+
+        // Expect each file to be hashed once, and the key to be the same as with the default hasher
+        assertEquals(Arrays.asList(srcFile, incFile), hashed);
+        assertEquals(key, ArtifactCache.getKey(srcFile, Arrays.asList(srcFile, incFile), COMPILER_ID, emptyList()));
+        // The same files with another source file gives another key
+        assertNotEquals(key, ArtifactCache.getKey(incFile, Arrays.asList(srcFile, incFile), COMPILER_ID, emptyList()));
+    }
+
+    @Test
+    public void testStoreAndFetch() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir, Long.MAX_VALUE);
+        String key = ArtifactCache.getKey(srcFile, singletonList(srcFile), COMPILER_ID, emptyList());
+
+        assertFalse(cache.fetch(key, destFile));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        Files.write(destFile, new byte[]{1, 2, 3});
+        cache.store(key, destFile);
+        Files.delete(destFile);
+
+        assertTrue(cache.fetch(key, destFile));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(destFile));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir, 150);
+        Files.write(destFile, new byte[100]);
+        cache.store("aaaa", destFile);
+        cache.store("bbbb", destFile);
+
+        // Make the first entry the most recently used
+        Files.setLastModifiedTime(cacheDir.resolve("bb/bbbb"), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        assertTrue(cache.fetch("aaaa", destFile));
+
+        cache.evict();
+
+        assertTrue(Files.exists(cacheDir.resolve("aa/aaaa")));
+        assertFalse(Files.exists(cacheDir.resolve("bb/bbbb")));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.dykstrom.ant.fasm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class BuildHistoryTest {
+
+    private static final Path FAST = Paths.get("fast.asm");
+    private static final Path SLOW = Paths.get("slow.asm");
+    private static final Path FAILED = Paths.get("failed.asm");
+    private static final Path NEW = Paths.get("new.asm");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPut() {
+        BuildHistory history = new BuildHistory();
+        assertEquals(-1, history.getDuration(FAST));
+        assertFalse(history.hasFailed(FAST));
+
+        history.put(FAST, true, TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(10, history.getDuration(FAST));
+        assertFalse(history.hasFailed(FAST));
+
+        // A failure without a known duration keeps the previous duration
+        history.put(FAST, false, 0);
+        assertEquals(10, history.getDuration(FAST));
+        assertTrue(history.hasFailed(FAST));
+    }
+
+    @Test
+    public void testPut_Memory() {
+        BuildHistory history = new BuildHistory();
+        assertEquals(-1, history.getMemory(FAST));
+
+        history.put(FAST, true, TimeUnit.MILLISECONDS.toNanos(10), 16384);
+        assertEquals(16384, history.getMemory(FAST));
+
+        // A compilation without a known memory usage keeps the previous memory usage
+        history.put(FAST, true, TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(16384, history.getMemory(FAST));
+    }
+
+    @Test
+    public void testGetSchedulePriority() {
+        BuildHistory history = new BuildHistory();
+        history.put(FAST, true, TimeUnit.MILLISECONDS.toNanos(10));
+        history.put(SLOW, true, TimeUnit.MILLISECONDS.toNanos(1000));
+        history.put(FAILED, false, TimeUnit.MILLISECONDS.toNanos(1));
+
+        List<Path> files = new ArrayList<>(asList(FAST, NEW, SLOW, FAILED));
+        files.sort(Comparator.comparingLong(history::getSchedulePriority));
+
+        assertEquals(asList(FAILED, NEW, SLOW, FAST), files);
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        Path historyFile = folder.getRoot().toPath().resolve("history/fasm.history");
+
+        BuildHistory history = new BuildHistory();
+        history.put(SLOW, true, TimeUnit.MILLISECONDS.toNanos(1000));
+        history.put(FAILED, false, TimeUnit.MILLISECONDS.toNanos(1));
+        history.save(historyFile);
+        assertTrue(Files.exists(historyFile));
+
+        BuildHistory loaded = new BuildHistory();
+        loaded.load(historyFile);
+        assertEquals(1000, loaded.getDuration(SLOW));
+        assertFalse(loaded.hasFailed(SLOW));
+        assertEquals(1, loaded.getDuration(FAILED));
+        assertTrue(loaded.hasFailed(FAILED));
+    }
+
+    @Test
+    public void testSaveAndLoad_Memory() {
+        Path historyFile = folder.getRoot().toPath().resolve("fasm.history");
+
+        BuildHistory history = new BuildHistory();
+        history.put(SLOW, true, TimeUnit.MILLISECONDS.toNanos(1000), 65536);
+        history.save(historyFile);
+
+        BuildHistory loaded = new BuildHistory();
+        loaded.load(historyFile);
+        assertEquals(65536, loaded.getMemory(SLOW));
+    }
+
+    @Test
+    public void testLoad_InvalidLine() throws Exception {
+        Path historyFile = folder.getRoot().toPath().resolve("fasm.history");
+        Files.write(historyFile, asList("# fasm-ant history file", SLOW.toAbsolutePath() + "\t1000\ttrue"));
+
+        BuildHistory history = new BuildHistory();
+        history.load(historyFile);
+        assertEquals(-1, history.getDuration(SLOW));
+    }
+
+    @Test
+    public void testLoad_NoFile() {
+        BuildHistory history = new BuildHistory();
+        history.load(folder.getRoot().toPath().resolve("missing"));
+        assertEquals(-1, history.getDuration(FAST));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class BuildReportTest {
+
+    private static final Path SRC_FILE = Paths.get("src", "elf.asm");
+    private static final Path DEST_FILE = Paths.get("bin", "elf.o");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWrite() throws Exception {
+        BuildReport report = new BuildReport();
+        report.addScanTime(2_000_000);
+        BuildReport.Record record = report.get(SRC_FILE);
+        record.setFormat(DEST_FILE, "elf", 1_000);
+        record.setReason(BuildReport.Reason.MISSING, 2_000);
+        record.setProcess(300_000, 5_000_000);
+        record.setResult(new CompileResult(SRC_FILE, DEST_FILE, 2, null));
+        report.get(Paths.get("src", "coff.asm")).setOutputSize(42);
+        report.get(Paths.get("src", "pe.asm")).setReason(BuildReport.Reason.UP_TO_DATE, 1_000);
+        report.stop();
+
+        StringWriter writer = new StringWriter();
+        report.write(writer);
+        String json = writer.toString();
+
+        assertTrue(json.contains("\"files\": 3,"));
+        assertTrue(json.contains("\"compiled\": 1,"));
+        assertTrue(json.contains("\"failed\": 1,"));
+        assertTrue(json.contains("\"upToDate\": 1,"));
+        assertTrue(json.contains("\"scanMillis\": 2.000,"));
+        assertTrue(json.contains("\"assemblyMillis\": {\"p50\": 5.000, \"p90\": 5.000, \"p99\": 5.000, \"max\": 5.000}"));
+        assertTrue(json.contains("\"reason\": \"missing\", \"status\": \"failure\", \"cached\": false, \"exitValue\": 2, \"outputSize\": 0"));
+        assertTrue(json.contains("\"outputSize\": 42\n"));
+        assertTrue(json.contains("\"reason\": \"up-to-date\", \"status\": null, \"cached\": false, \"exitValue\": null"));
+    }
+
+    @Test
+    public void testWrite_Cancelled() throws Exception {
+        BuildReport report = new BuildReport();
+        report.get(SRC_FILE).setResult(new CompileResult(SRC_FILE, DEST_FILE, CompileResult.Status.CANCELLED, -1, null, false));
+        report.stop();
+
+        StringWriter writer = new StringWriter();
+        report.write(writer);
+        String json = writer.toString();
+
+        assertTrue(json.contains("\"compiled\": 0,"));
+        assertTrue(json.contains("\"failed\": 0,"));
+        assertTrue(json.contains("\"cancelled\": 1,"));
+        assertTrue(json.contains("\"status\": \"cancelled\", \"cached\": false, \"exitValue\": null"));
+    }
+
+    @Test
+    public void testWrite_Variants() throws Exception {
+        BuildReport report = new BuildReport();
+        Path debugFile = Paths.get("debug", "elf.o");
+        Path releaseFile = Paths.get("release", "elf.o");
+        report.get(SRC_FILE, debugFile).setVariant("debug");
+        report.get(SRC_FILE, debugFile).setReason(BuildReport.Reason.MISSING, 0);
+        report.get(SRC_FILE, releaseFile).setVariant("release");
+        report.get(SRC_FILE, releaseFile).setReason(BuildReport.Reason.UP_TO_DATE, 0);
+        assertSame(report.get(SRC_FILE, debugFile), report.get(SRC_FILE, debugFile));
+        report.stop();
+
+        StringWriter writer = new StringWriter();
+        report.write(writer);
+        String json = writer.toString();
+
+        assertTrue(json.contains("\"files\": 2,"));
+        assertTrue(json.contains("\"upToDate\": 1,"));
+        assertTrue(json.contains("\"dest\": " + BuildReport.quote(debugFile.toString())));
+        assertTrue(json.contains("\"dest\": " + BuildReport.quote(releaseFile.toString()) + ", \"variant\": \"release\""));
+    }
+
+    @Test
+    public void testWrite_Empty() throws Exception {
+        BuildReport report = new BuildReport();
+        report.stop();
+
+        StringWriter writer = new StringWriter();
+        report.write(writer);
+
+        assertTrue(writer.toString().contains("\"files\": []"));
+    }
+
+    @Test
+    public void testSave() throws Exception {
+        Path reportFile = temporaryFolder.getRoot().toPath().resolve("report").resolve("fasm.json");
+        BuildReport report = new BuildReport();
+        report.get(SRC_FILE).setReason(BuildReport.Reason.SOURCE_NEWER, 0);
+        report.stop();
+
+        report.save(reportFile);
+
+        String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.startsWith("{\n  \"version\": " + BuildReport.VERSION));
+        assertTrue(json.contains("\"reason\": \"source-newer\""));
+    }
+
+    @Test
+    public void testPercentile() {
+        long[] values = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        assertEquals(5, BuildReport.percentile(values, 50));
+        assertEquals(9, BuildReport.percentile(values, 90));
+        assertEquals(10, BuildReport.percentile(values, 99));
+        assertEquals(1, BuildReport.percentile(new long[]{1}, 50));
+        assertEquals(0, BuildReport.percentile(new long[0], 50));
+    }
+
+    @Test
+    public void testToMillis() {
+        assertEquals("0.000", BuildReport.toMillis(0));
+        assertEquals("1.500", BuildReport.toMillis(1_500_000));
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("\"C:\\\\src\\\\elf.asm\"", BuildReport.quote("C:\\src\\elf.asm"));
+        assertEquals("\"a\\\"b\\n\\u0001\"", BuildReport.quote("a\"b\n\u0001"));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class BuildStateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path srcFile;
+    private Path incFile;
+    private Path destFile;
+
+    @Before
+    public void setUp() throws Exception {
+        srcFile = folder.newFile("main.asm").toPath();
+        incFile = folder.newFile("macros.inc").toPath();
+        destFile = folder.getRoot().toPath().resolve("main.bin");
+        Files.write(srcFile, singletonList("include 'macros.inc'"));
+        Files.write(incFile, singletonList("macro foo {}"));
+    }
+
+    @Test
+    public void testCreateEntry() throws Exception {
+        BuildState state = new BuildState();
+        List<Path> files = Arrays.asList(srcFile, incFile);
+
+        BuildState.Entry entry = state.createEntry(files, "fasm", "main.asm");
+        assertEquals(entry, state.createEntry(files, "fasm", "main.asm"));
+
+        // Touching a file does not change the state
+        Files.setLastModifiedTime(incFile, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+        assertEquals(entry, state.createEntry(files, "fasm", "main.asm"));
+
+        // Changing the command line changes the state
+        BuildState.Entry changedArgs = state.createEntry(files, "fasm", "-p", "10", "main.asm");
+        assertEquals(entry.getInputHash(), changedArgs.getInputHash());
+        assertNotEquals(entry.getArgsHash(), changedArgs.getArgsHash());
+
+        // Changing an included file changes the state
+        Files.write(incFile, singletonList("macro bar {}"));
+        Files.setLastModifiedTime(incFile, FileTime.fromMillis(System.currentTimeMillis() + 4000));
+        BuildState.Entry changedInput = state.createEntry(files, "fasm", "main.asm");
+        assertNotEquals(entry.getInputHash(), changedInput.getInputHash());
+        assertEquals(entry.getArgsHash(), changedInput.getArgsHash());
+    }
+
+    @Test
+    public void testPutAndRemoveOutput() {
+        BuildState state = new BuildState();
+        BuildState.Entry entry = state.createEntry(singletonList(srcFile), "fasm");
+
+        assertNull(state.getOutput(destFile));
+        state.putOutput(destFile, entry);
+        assertEquals(entry, state.getOutput(destFile));
+        state.removeOutput(destFile);
+        assertNull(state.getOutput(destFile));
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        Path stateFile = folder.getRoot().toPath().resolve("state/fasm.state");
+
+        BuildState state = new BuildState();
+        BuildState.Entry entry = state.createEntry(Arrays.asList(srcFile, incFile), "fasm");
+        state.putOutput(destFile, entry);
+        state.save(stateFile);
+        assertTrue(Files.exists(stateFile));
+
+        BuildState loaded = new BuildState();
+        loaded.load(stateFile);
+        assertEquals(entry, loaded.getOutput(destFile));
+    }
+
+    @Test
+    public void testSaveAndLoad_Failure() {
+        Path stateFile = folder.getRoot().toPath().resolve("fasm.state");
+        String output = "main.asm [1]:\n\tmov eax,\\\r\nerror: invalid operand.\n";
+
+        BuildState state = new BuildState();
+        BuildState.Entry entry = state.createEntry(singletonList(srcFile), "fasm");
+        state.putFailure(destFile, new BuildState.Failure(entry, 2, output));
+        state.save(stateFile);
+
+        BuildState loaded = new BuildState();
+        loaded.load(stateFile);
+        BuildState.Failure failure = loaded.getFailure(destFile);
+        assertEquals(entry, failure.getEntry());
+        assertEquals(2, failure.getExitValue());
+        assertEquals(output, failure.getOutput());
+
+        loaded.removeFailure(destFile);
+        assertNull(loaded.getFailure(destFile));
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals("a\\tb\\nc\\\\d", BuildState.escape("a\tb\nc\\d"));
+        assertEquals("a\tb\nc\\d", BuildState.unescape(BuildState.escape("a\tb\nc\\d")));
+        assertEquals("trailing\\", BuildState.unescape("trailing\\"));
+    }
+
+    @Test
+    public void testLoad_NoFile() {
+        BuildState state = new BuildState();
+        state.load(folder.getRoot().toPath().resolve("does-not-exist.state"));
+        assertNull(state.getOutput(destFile));
+    }
+}
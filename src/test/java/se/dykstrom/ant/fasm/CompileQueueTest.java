@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.dykstrom.ant.fasm;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class CompileQueueTest {
+
+    @Test
+    public void testOrder() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> started = new ArrayList<>();
+        CompileQueue queue = new CompileQueue(1, Executors.defaultThreadFactory(), file -> file.toString().charAt(0));
+        try {
+            // Keep the only worker thread busy until all other compilations have been submitted
+            queue.submit(entry("z.asm"), () -> {
+                latch.await();
+                return result("z.asm");
+            });
+            for (String name : asList("c.asm", "a.asm", "b.asm")) {
+                queue.submit(entry(name), () -> {
+                    started.add(name);
+                    return result(name);
+                });
+            }
+            assertEquals(4, queue.size());
+            latch.countDown();
+
+            List<Path> finished = new ArrayList<>();
+            while (queue.size() > 0) {
+                finished.add(queue.take().getSrcFile());
+            }
+
+            assertEquals(asList("a.asm", "b.asm", "c.asm"), started);
+            assertEquals(asList(Paths.get("z.asm"), Paths.get("a.asm"), Paths.get("b.asm"), Paths.get("c.asm")), finished);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testOrder_PriorityChangesAfterSubmit() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> started = new ArrayList<>();
+        Map<String, Long> priorities = new HashMap<>();
+        priorities.put("a.asm", 1L);
+        priorities.put("b.asm", 2L);
+        priorities.put("c.asm", 3L);
+        CompileQueue queue = new CompileQueue(1, Executors.defaultThreadFactory(), file -> priorities.getOrDefault(file.toString(), 0L));
+        try {
+            queue.submit(entry("z.asm"), () -> {
+                latch.await();
+                return result("z.asm");
+            });
+            for (String name : asList("c.asm", "a.asm", "b.asm")) {
+                queue.submit(entry(name), () -> {
+                    started.add(name);
+                    return result(name);
+                });
+            }
+
+            // Like the history does when a compilation is reported, while the others are waiting
+            priorities.put("a.asm", 4L);
+            latch.countDown();
+            while (queue.size() > 0) {
+                queue.take();
+            }
+
+            assertEquals(asList("a.asm", "b.asm", "c.asm"), started);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        CompileQueue queue = new CompileQueue(4, Executors.defaultThreadFactory(), file -> file.toString().charAt(0), 100);
+        try {
+            queue.submit(entry("a.asm"), 60, () -> {
+                latch.await();
+                return result("a.asm");
+            });
+            queue.submit(entry("b.asm"), 60, () -> result("b.asm"));
+            queue.submit(entry("c.asm"), 50, () -> result("c.asm"));
+
+            // Only one compilation at a time fits, so the others wait in order, although threads are free
+            assertEquals(60, queue.getMemoryInUse());
+            assertEquals(3, queue.size());
+
+            latch.countDown();
+            assertEquals(Paths.get("a.asm"), queue.take().getSrcFile());
+            assertEquals(Paths.get("b.asm"), queue.take().getSrcFile());
+            assertEquals(Paths.get("c.asm"), queue.take().getSrcFile());
+            assertEquals(0, queue.getMemoryInUse());
+
+            // A compilation larger than the budget starts when nothing else is in progress
+            queue.submit(entry("d.asm"), 200, () -> result("d.asm"));
+            assertEquals(200, queue.getMemoryInUse());
+            assertEquals(Paths.get("d.asm"), queue.take().getSrcFile());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CompileQueue queue = new CompileQueue(1, Executors.defaultThreadFactory(), file -> 0);
+        queue.submit(entry("a.asm"), () -> {
+            Thread.sleep(60000);
+            return result("a.asm");
+        });
+        queue.submit(entry("b.asm"), () -> result("b.asm"));
+
+        List<CompileResult> finished = new ArrayList<>();
+        List<Map.Entry<Path, Path>> cancelled = queue.cancel(10000, finished::add);
+
+        assertEquals(asList(entry("a.asm"), entry("b.asm")), cancelled);
+        assertTrue(finished.isEmpty());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testCancel_Finished() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        CompileQueue queue = new CompileQueue(2, Executors.defaultThreadFactory(), file -> 0);
+        queue.submit(entry("a.asm"), () -> {
+            latch.countDown();
+            return result("a.asm");
+        });
+        queue.submit(entry("b.asm"), () -> {
+            Thread.sleep(60000);
+            return result("b.asm");
+        });
+        queue.submit(entry("c.asm"), () -> result("c.asm"));
+        latch.await();
+        Thread.sleep(100);
+
+        // Compilation a has finished, but its result has not been taken
+        List<CompileResult> finished = new ArrayList<>();
+        List<Map.Entry<Path, Path>> cancelled = queue.cancel(10000, finished::add);
+
+        assertEquals(1, finished.size());
+        assertEquals(Paths.get("a.asm"), finished.get(0).getSrcFile());
+        assertEquals(asList(entry("b.asm"), entry("c.asm")), cancelled);
+        assertEquals(0, queue.size());
+    }
+
+    private static Map.Entry<Path, Path> entry(String name) {
+        return new AbstractMap.SimpleImmutableEntry<>(Paths.get(name), Paths.get(name.replace(".asm", ".o")));
+    }
+
+    private static CompileResult result(String name) {
+        return new CompileResult(Paths.get(name), Paths.get(name.replace(".asm", ".o")), 0, null);
+    }
+}
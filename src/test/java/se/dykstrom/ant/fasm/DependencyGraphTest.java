@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static se.dykstrom.ant.fasm.DependencyGraph.getIncludePaths;
+import static se.dykstrom.ant.fasm.DependencyGraph.getReferences;
+
+public class DependencyGraphTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path srcDir;
+    private Path incDir;
+
+    @Before
+    public void setUp() throws Exception {
+        srcDir = folder.newFolder("src").toPath();
+        incDir = folder.newFolder("inc").toPath();
+    }
+
+    @Test
+    public void testGetReferences() {
+        assertEquals(singletonList("macros.inc"), getReferences("include 'macros.inc'"));
+        assertEquals(singletonList("win32a.inc"), getReferences("  INCLUDE \"win32a.inc\"  ; Windows"));
+        assertEquals(singletonList("data.bin"), getReferences("table file 'data.bin':10,20"));
+        assertEquals(singletonList("a;b.inc"), getReferences("include 'a;b.inc'"));
+        assertEquals(emptyList(), getReferences("; include 'macros.inc'"));
+        assertEquals(emptyList(), getReferences("mov eax, 0"));
+        assertEquals(emptyList(), getReferences(""));
+    }
+
+    @Test
+    public void testGetIncludePaths() {
+        assertEquals(emptyList(), getIncludePaths(null));
+        assertEquals(emptyList(), getIncludePaths(""));
+        assertEquals(Arrays.asList(srcDir, incDir), getIncludePaths(srcDir + ";" + incDir));
+    }
+
+    @Test
+    public void testGetDependencies() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include 'macros.inc'", "include 'sub/data.inc'");
+        Path macros = write(srcDir.resolve("macros.inc"), "; No includes here");
+        Path data = write(srcDir.resolve("sub/data.inc"), "file 'table.bin'");
+        Path table = write(srcDir.resolve("sub/table.bin"), "");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+
+        assertEquals(set(main, macros, data, table), graph.getDependencies(main));
+        assertEquals(set(data, table), graph.getDependencies(data));
+    }
+
+    @Test
+    public void testGetDependencies_IncludePath() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include 'win32a.inc'", "include 'missing.inc'");
+        Path win32a = write(incDir.resolve("win32a.inc"), "");
+
+        DependencyGraph graph = new DependencyGraph(singletonList(incDir));
+
+        assertEquals(set(main, win32a), graph.getDependencies(main));
+    }
+
+    @Test
+    public void testGetDependencies_Cycle() throws Exception {
+        Path a = write(srcDir.resolve("a.inc"), "include 'b.inc'");
+        Path b = write(srcDir.resolve("b.inc"), "include 'a.inc'");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+
+        assertEquals(set(a, b), graph.getDependencies(a));
+    }
+
+    @Test
+    public void testGetDependencies_ChangedFile() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include 'a.inc'");
+        Path a = write(srcDir.resolve("a.inc"), "");
+        Path b = write(srcDir.resolve("b.inc"), "");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        assertEquals(set(main, a), graph.getDependencies(main));
+
+        write(main, "include 'b.inc'", "include 'a.inc'");
+        Files.setLastModifiedTime(main, FileTime.fromMillis(Files.getLastModifiedTime(main).toMillis() + 2000));
+        assertEquals(set(main, a, b), graph.getDependencies(main));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include 'a.inc'");
+        Path a = srcDir.resolve("a.inc");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        graph.beginBuild();
+        assertEquals(set(main), graph.getDependencies(main));
+
+        // The missing file is written during the build
+        write(a, "");
+        assertEquals(set(main), graph.getDependencies(main));
+        graph.invalidate(a);
+        assertEquals(set(main, a), graph.getDependencies(main));
+
+        // The source file is changed during the build
+        write(main, "include 'a.inc'", "include 'b.inc'");
+        Files.setLastModifiedTime(main, FileTime.fromMillis(Files.getLastModifiedTime(main).toMillis() + 2000));
+        Path b = write(srcDir.resolve("b.inc"), "");
+        graph.invalidate(main);
+        assertEquals(set(main, a, b), graph.getDependencies(main));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include 'a.inc'");
+        Path a = write(srcDir.resolve("a.inc"), "");
+        Path depFile = folder.getRoot().toPath().resolve("deps/fasm.deps");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        graph.getDependencies(main);
+        graph.save(depFile);
+        assertTrue(Files.exists(depFile));
+
+        // Change the file without changing size or modification time to prove that the cached references are used
+        FileTime lastModified = Files.getLastModifiedTime(main);
+        write(main, "include 'b.inc'");
+        Files.setLastModifiedTime(main, lastModified);
+
+        DependencyGraph loaded = new DependencyGraph(emptyList());
+        loaded.load(depFile);
+        assertEquals(set(main, a), loaded.getDependencies(main));
+    }
+
+    @Test
+    public void testPutInputs() throws Exception {
+        // The include is built from a variable, so it cannot be found by parsing
+        Path main = write(srcDir.resolve("main.asm"), "include '%ARCH%/defs.inc'");
+        Path defs = write(incDir.resolve("x64/defs.inc"), "file 'table.bin'");
+        Path table = write(incDir.resolve("x64/table.bin"), "");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        assertEquals(set(main), graph.getDependencies(main));
+
+        SymbolFile.FileReference reference = new SymbolFile.FileReference(defs, "table.bin");
+        graph.putInputs(main, new SymbolFile(set(main, defs), singletonList(reference)));
+        assertEquals(set(main, defs, table), graph.getDependencies(main));
+
+        graph.removeInputs(main);
+        assertEquals(set(main), graph.getDependencies(main));
+    }
+
+    @Test
+    public void testPutInputs_RemovedFile() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include 'a.inc'");
+        Path a = write(srcDir.resolve("a.inc"), "");
+        Path b = write(incDir.resolve("b.inc"), "");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        graph.putInputs(main, new SymbolFile(set(main, a, b), emptyList()));
+        assertEquals(set(main, a, b), graph.getDependencies(main));
+
+        // When an input file is removed, the dependencies are found by parsing again
+        Files.delete(b);
+        assertEquals(set(main, a), graph.getDependencies(main));
+    }
+
+    @Test
+    public void testSaveAndLoad_Inputs() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include '%ARCH%/defs.inc'");
+        Path defs = write(incDir.resolve("x64/defs.inc"), "");
+        Path depFile = folder.getRoot().toPath().resolve("fasm.deps");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        graph.getDependencies(main);
+        graph.putInputs(main, new SymbolFile(set(main, defs), emptyList()));
+        graph.save(depFile);
+
+        DependencyGraph loaded = new DependencyGraph(emptyList());
+        loaded.load(depFile);
+        assertEquals(set(main, defs), loaded.getDependencies(main));
+    }
+
+    @Test
+    public void testGetDependencies_WithoutInputs() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include '%ARCH%/defs.inc'");
+        Path defs = write(incDir.resolve("x64/defs.inc"), "");
+        Path depFile = folder.getRoot().toPath().resolve("fasm.deps");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        graph.putInputs(main, new SymbolFile(set(main, defs), emptyList()));
+        graph.save(depFile);
+
+        DependencyGraph loaded = new DependencyGraph(emptyList());
+        loaded.load(depFile);
+        assertEquals(set(main), loaded.getDependencies(main, false));
+        assertEquals(set(main, defs), loaded.getDependencies(main, true));
+    }
+
+    @Test
+    public void testGetFormat() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "format PE console", "include 'a.inc'");
+        Path depFile = folder.getRoot().toPath().resolve("fasm.deps");
+
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        assertEquals("pe console", graph.getFormat(main, 0));
+        graph.getDependencies(main);
+        graph.save(depFile);
+
+        // Change the file without changing size or modification time to prove that the cached format is used
+        FileTime lastModified = Files.getLastModifiedTime(main);
+        write(main, "format ELF executable", "include 'b'");
+        Files.setLastModifiedTime(main, lastModified);
+
+        DependencyGraph loaded = new DependencyGraph(emptyList());
+        loaded.load(depFile);
+        assertEquals("pe console", loaded.getFormat(main, 0));
+
+        // Touch the file to make the cached format invalid
+        Files.setLastModifiedTime(main, FileTime.fromMillis(lastModified.toMillis() + 2000));
+        assertEquals("elf executable", loaded.getFormat(main, 0));
+    }
+
+    @Test
+    public void testLoad_NoFile() {
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        graph.load(folder.getRoot().toPath().resolve("does-not-exist.deps"));
+    }
+
+    @Test
+    public void testGetLastModifiedTime_IncludeNewer() throws Exception {
+        Path main = write(srcDir.resolve("main.asm"), "include 'a.inc'");
+        Path a = write(srcDir.resolve("a.inc"), "");
+        FileTime destTime = FileTime.fromMillis(System.currentTimeMillis() - 10000);
+        Files.setLastModifiedTime(main, FileTime.fromMillis(destTime.toMillis() - 10000));
+        Files.setLastModifiedTime(a, FileTime.fromMillis(destTime.toMillis() - 10000));
+
+        // Like the task, check if any dependency is newer than the destination file
+        DependencyGraph graph = new DependencyGraph(emptyList());
+        graph.beginBuild();
+        assertFalse(isAnyNewer(graph, main, destTime));
+
+        // Touch the included file, and expect the change to be seen in the next build
+        Files.setLastModifiedTime(a, FileTime.fromMillis(destTime.toMillis() + 10000));
+        graph.beginBuild();
+        assertTrue(isAnyNewer(graph, main, destTime));
+    }
+
+    private static boolean isAnyNewer(DependencyGraph graph, Path srcFile, FileTime destTime) {
+        return graph.getDependencies(srcFile).stream().anyMatch(file -> graph.getLastModifiedTime(file).compareTo(destTime) > 0);
+    }
+
+    // -----------------------------------------------------------------------
+
+    private static Path write(Path file, String... lines) throws Exception {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, Arrays.asList(lines)).toAbsolutePath().normalize();
+    }
+
+    private static Set<Path> set(Path... paths) {
+        return new HashSet<>(Arrays.asList(paths));
+    }
+}
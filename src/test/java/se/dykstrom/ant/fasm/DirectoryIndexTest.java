@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+
+import static org.junit.Assert.*;
+
+public class DirectoryIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testGetLastModifiedTime() throws Exception {
+        Path directory = temporaryFolder.newFolder("bin").toPath();
+        Path a = Files.createFile(directory.resolve("a.o"));
+        Path b = Files.createFile(directory.resolve("b.o"));
+        FileTime time = FileTime.fromMillis(1_500_000_000_000L);
+        Files.setLastModifiedTime(a, time);
+
+        DirectoryIndex index = new DirectoryIndex();
+
+        assertEquals(time, index.getLastModifiedTime(a));
+        assertEquals(Files.getLastModifiedTime(b), index.getLastModifiedTime(b));
+        assertNull(index.getLastModifiedTime(directory.resolve("c.o")));
+        // All files were found using a single listing
+        assertEquals(1, index.getListed());
+    }
+
+    @Test
+    public void testGetLastModifiedTime_MissingDirectory() {
+        Path file = temporaryFolder.getRoot().toPath().resolve("missing").resolve("a.o");
+
+        DirectoryIndex index = new DirectoryIndex();
+
+        assertNull(index.getLastModifiedTime(file));
+    }
+
+    @Test
+    public void testList() throws Exception {
+        Path directory = temporaryFolder.newFolder("src").toPath();
+        Files.createFile(directory.resolve("b.asm"));
+        Files.createFile(directory.resolve("a.asm"));
+        Files.createDirectory(directory.resolve("c"));
+
+        DirectoryIndex index = new DirectoryIndex();
+        Map<String, BasicFileAttributes> listing = index.list(directory);
+
+        assertEquals(asList("a.asm", "b.asm", "c"), new ArrayList<>(listing.keySet()));
+        assertTrue(listing.get("a.asm").isRegularFile());
+        assertTrue(listing.get("c").isDirectory());
+        assertTrue(index.list(directory.resolve("missing")).isEmpty());
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        Path directory = temporaryFolder.newFolder("bin").toPath();
+        Path file = directory.resolve("a.o");
+
+        DirectoryIndex index = new DirectoryIndex();
+        assertNull(index.getLastModifiedTime(file));
+
+        Files.createFile(file);
+        FileTime time = FileTime.fromMillis(1_500_000_000_000L);
+        Files.setLastModifiedTime(file, time);
+        index.update(file);
+
+        assertEquals(time, index.getLastModifiedTime(file));
+        // The file was updated without listing the directory again
+        assertEquals(1, index.getListed());
+
+        Files.delete(file);
+        index.update(file);
+        assertNull(index.getLastModifiedTime(file));
+    }
+
+    @Test
+    public void testMakeDirectory() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("new").resolve("a.o");
+
+        DirectoryIndex index = new DirectoryIndex();
+        index.makeDirectory(file);
+        index.makeDirectory(file);
+
+        assertTrue(Files.isDirectory(file.getParent()));
+        assertEquals(1, index.getListed());
+        assertNull(index.getLastModifiedTime(file));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Path dir1 = temporaryFolder.newFolder("dir1").toPath();
+        Path dir2 = temporaryFolder.newFolder("dir2").toPath();
+
+        DirectoryIndex index = new DirectoryIndex(1);
+        index.getLastModifiedTime(dir1.resolve("a.o"));
+        index.getLastModifiedTime(dir2.resolve("a.o"));
+        index.getLastModifiedTime(dir1.resolve("a.o"));
+
+        // The listing of the first directory was evicted, and had to be made again
+        assertEquals(3, index.getListed());
+    }
+}
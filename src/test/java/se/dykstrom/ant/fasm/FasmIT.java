@@ -16,15 +16,34 @@
 
 package se.dykstrom.ant.fasm;
 
+import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.junit.Assert.*;
 
 public class FasmIT {
@@ -41,6 +60,9 @@ public class FasmIT {
     private static final String ERROR_PROPERTY = "error";
     private static final String UPDATED_PROPERTY = "updated";
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private Project project;
     private Fasm fasm;
 
@@ -94,6 +116,569 @@ public class FasmIT {
         assertNull(project.getProperty(UPDATED_PROPERTY));
     }
 
+    @Test
+    public void testExecute_TempFile() throws Exception {
+        Path tempPath = FileUtils.getTempPath(DEST_PATH);
+
+        // Remove destination file to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+        fasm.setIncludes(SRC_FILE);
+        fasm.execute();
+
+        // Expect the destination file to be moved into place
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertTrue(Files.exists(DEST_PATH));
+        assertFalse(Files.exists(tempPath));
+
+        // Leave a temporary file behind, as if a build was killed, and test again
+        Files.write(tempPath, singletonList("partial"));
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.execute();
+
+        // Expect the temporary file to be deleted, even if nothing was compiled
+        assertNull(project.getProperty(UPDATED_PROPERTY));
+        assertFalse(Files.exists(tempPath));
+
+        // Make the source file newer, and force an error
+        byte[] contents = Files.readAllBytes(DEST_PATH);
+        Files.setLastModifiedTime(SRC_PATH, FileTime.fromMillis(System.currentTimeMillis()));
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setMemory(0);
+        fasm.setFailOnError(false);
+        fasm.execute();
+
+        // Expect the old destination file to be left untouched
+        assertEquals("true", project.getProperty(ERROR_PROPERTY));
+        assertArrayEquals(contents, Files.readAllBytes(DEST_PATH));
+        assertFalse(Files.exists(tempPath));
+    }
+
+    @Test
+    public void testExecute_StateFile() throws Exception {
+        Path stateFile = Paths.get(DEST_DIR, "fasm.state");
+
+        // Remove destination and state files to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+        Files.deleteIfExists(stateFile);
+
+        fasm.setIncludes(SRC_FILE);
+        fasm.setStateFile(stateFile.toString());
+        fasm.execute();
+
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertTrue(Files.exists(stateFile));
+
+        // Touch the source file, and test again
+        Files.setLastModifiedTime(SRC_PATH, FileTime.fromMillis(System.currentTimeMillis()));
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setStateFile(stateFile.toString());
+        fasm.execute();
+
+        // Expect no file updated, because the contents did not change
+        assertNull(project.getProperty(UPDATED_PROPERTY));
+
+        // Change the command line, and test again
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setStateFile(stateFile.toString());
+        fasm.setPasses(10);
+        fasm.execute();
+
+        // Expect the file to be updated, because the command line changed
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+    }
+
+    @Test
+    public void testExecute_ExactDeps() throws Exception {
+        Path stateFile = Paths.get(DEST_DIR, "fasm.state");
+
+        // Remove destination and state files to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+        Files.deleteIfExists(stateFile);
+
+        fasm.setIncludes(SRC_FILE);
+        fasm.setStateFile(stateFile.toString());
+        fasm.setExactDeps(true);
+        fasm.execute();
+
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertTrue(Files.exists(stateFile));
+
+        // Test again without exact dependencies
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setStateFile(stateFile.toString());
+        fasm.execute();
+
+        // Expect no file updated, because the symbolic information file is not part of the command line
+        assertNull(project.getProperty(UPDATED_PROPERTY));
+    }
+
+    @Test
+    public void testExecute_ExactDepsTurnedOff() throws Exception {
+        Path srcDir = temporaryFolder.newFolder("src").toPath();
+        Path srcFile = srcDir.resolve(SRC_FILE);
+        Path incFile = srcDir.resolve("added.inc");
+        Path depFile = srcDir.resolve("fasm.deps");
+        Path stateFile = srcDir.resolve("fasm.state");
+        Files.write(srcFile, singletonList("; No includes"));
+        Files.write(incFile, singletonList("; Version 1"));
+
+        // Compile with exact dependencies, that do not include the include file
+        compileWithDepFile(srcDir, depFile, stateFile, true);
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+
+        // Add the include, and compile without exact dependencies
+        Files.write(srcFile, singletonList("include 'added.inc'"));
+        compileWithDepFile(srcDir, depFile, stateFile, false);
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+
+        // Change the include file, and expect the source file to be compiled again
+        Files.write(incFile, singletonList("; Version 2 is longer"));
+        compileWithDepFile(srcDir, depFile, stateFile, false);
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+    }
+
+    private void compileWithDepFile(Path srcDir, Path depFile, Path stateFile, boolean exactDeps) {
+        createProjectAndTask();
+        fasm.setSrcDir(srcDir.toString());
+        fasm.setDestDir(srcDir.toString());
+        fasm.setIncludes(SRC_FILE);
+        fasm.setDepFile(depFile.toString());
+        fasm.setStateFile(stateFile.toString());
+        fasm.setExactDeps(exactDeps);
+        fasm.execute();
+    }
+
+    @Test
+    public void testExecute_CacheFailures() throws Exception {
+        Path srcDir = temporaryFolder.newFolder("src").toPath();
+        Path srcFile = srcDir.resolve(SRC_FILE);
+        Path stateFile = srcDir.resolve("fasm.state");
+        Path reportFile = srcDir.resolve("fasm-report.json");
+        Files.write(srcFile, singletonList("BOOM"));
+
+        // Compile a source file that fails
+        compileCachingFailures(srcDir, stateFile, reportFile);
+        assertEquals("true", project.getProperty(ERROR_PROPERTY));
+        String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"failed\": 1,"));
+
+        // Expect the failure to be reported again, without compiling
+        compileCachingFailures(srcDir, stateFile, reportFile);
+        assertEquals("true", project.getProperty(ERROR_PROPERTY));
+        json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"compiled\": 0,"));
+        assertTrue(json.contains("\"cached\": 1,"));
+
+        // Fix the source file, and expect it to be compiled
+        Files.write(srcFile, singletonList("; Fixed"));
+        compileCachingFailures(srcDir, stateFile, reportFile);
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+    }
+
+    private void compileCachingFailures(Path srcDir, Path stateFile, Path reportFile) {
+        createProjectAndTask();
+        fasm.setSrcDir(srcDir.toString());
+        fasm.setDestDir(srcDir.toString());
+        fasm.setIncludes(SRC_FILE);
+        fasm.setStateFile(stateFile.toString());
+        fasm.setReportFile(reportFile.toString());
+        fasm.setCacheFailures(true);
+        fasm.setFailOnError(false);
+        fasm.execute();
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecute_CacheFailuresWithoutStateFile() {
+        fasm.setCacheFailures(true);
+        fasm.execute();
+    }
+
+    @Test
+    public void testExecute_CacheDir() throws Exception {
+        String cacheDir = DEST_DIR + "/fasm-cache";
+
+        // Compile once to make sure the file is in the cache
+        Files.deleteIfExists(DEST_PATH);
+        fasm.setIncludes(SRC_FILE);
+        fasm.setCacheDir(cacheDir);
+        fasm.execute();
+        assertTrue(Files.exists(DEST_PATH));
+        byte[] expected = Files.readAllBytes(DEST_PATH);
+
+        // Remove destination file, and test again
+        Files.delete(DEST_PATH);
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setCacheDir(cacheDir);
+        fasm.execute();
+
+        // Expect the file to be restored from the cache
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertArrayEquals(expected, Files.readAllBytes(DEST_PATH));
+    }
+
+    @Test
+    public void testExecute_CacheRef() throws Exception {
+        // Remove destination file to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+
+        fasm.setIncludes(SRC_FILE);
+        fasm.setCacheRef("fasm.cache");
+        fasm.execute();
+
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        Object cache = project.getReference("fasm.cache");
+        assertTrue(cache instanceof FasmCache);
+
+        // Run another task in the same project, that should reuse the cache, and see the compiled file
+        fasm = new Fasm();
+        fasm.setProject(project);
+        fasm.setSrcDir(SRC_DIR);
+        fasm.setDestDir(DEST_DIR);
+        fasm.setUpdatedProperty("updated2");
+        fasm.setIncludes(SRC_FILE);
+        fasm.setCacheRef("fasm.cache");
+        fasm.execute();
+
+        assertSame(cache, project.getReference("fasm.cache"));
+        assertNull(project.getProperty("updated2"));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecute_InvalidCacheRef() {
+        project.addReference("fasm.cache", "foo");
+        fasm.setCacheRef("fasm.cache");
+        fasm.execute();
+    }
+
+    @Test
+    public void testExecute_HistoryFile() throws Exception {
+        Path historyFile = Paths.get(DEST_DIR, "fasm.history");
+
+        // Remove destination and history files to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+        Files.deleteIfExists(historyFile);
+
+        fasm.setIncludes(SRC_FILE);
+        fasm.setHistoryFile(historyFile.toString());
+        fasm.execute();
+
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        BuildHistory history = new BuildHistory();
+        history.load(historyFile);
+        assertTrue(history.getDuration(SRC_PATH) >= 0);
+        assertFalse(history.hasFailed(SRC_PATH));
+    }
+
+    @Test
+    public void testExecute_MemoryBudget() throws Exception {
+        Path historyFile = Paths.get(DEST_DIR, "fasm.history");
+
+        // Remove destination and history files to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+        Files.deleteIfExists(historyFile);
+
+        fasm.setIncludes(SRC_FILE);
+        fasm.setHistoryFile(historyFile.toString());
+        fasm.setMemoryBudget(1);
+        fasm.execute();
+
+        // Expect the compilation to run, although it does not fit in the budget, and its memory usage to be recorded
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        BuildHistory history = new BuildHistory();
+        history.load(historyFile);
+        assertTrue(history.getMemory(SRC_PATH) > 0);
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecute_InvalidMemoryBudget() {
+        fasm.setMemoryBudget(-1);
+        fasm.execute();
+    }
+
+    @Test
+    public void testExecute_ReportFile() throws Exception {
+        Path reportFile = Paths.get(DEST_DIR, "fasm-report.json");
+
+        // Remove destination and report files to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+        Files.deleteIfExists(reportFile);
+
+        fasm.setIncludes(SRC_FILE);
+        fasm.setReportFile(reportFile.toString());
+        fasm.execute();
+
+        String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"compiled\": 1,"));
+        assertTrue(json.contains("\"reason\": \"missing\", \"status\": \"success\""));
+
+        // Test again without removing destination file
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setReportFile(reportFile.toString());
+        fasm.execute();
+
+        json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"upToDate\": 1,"));
+        assertTrue(json.contains("\"reason\": \"up-to-date\", \"status\": null"));
+    }
+
+    @Test
+    public void testExecute_Variants() throws Exception {
+        Path debugDir = temporaryFolder.getRoot().toPath().resolve("debug");
+        Path releaseDir = temporaryFolder.getRoot().toPath().resolve("release");
+        Path reportFile = temporaryFolder.getRoot().toPath().resolve("fasm-report.json");
+        Path stateFile = temporaryFolder.getRoot().toPath().resolve("fasm.state");
+
+        compileVariants(debugDir, releaseDir, reportFile, stateFile);
+
+        // Expect the source file to be compiled once for each variant
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertTrue(Files.exists(debugDir.resolve(DEST_FILE)));
+        assertTrue(Files.exists(releaseDir.resolve(DEST_FILE)));
+        String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"files\": 2,"));
+        assertTrue(json.contains("\"compiled\": 2,"));
+        assertTrue(json.contains("\"variant\": \"debug\""));
+        assertTrue(json.contains("\"variant\": \"release\""));
+
+        // Expect both variants to be up to date
+        compileVariants(debugDir, releaseDir, reportFile, stateFile);
+        assertNull(project.getProperty(UPDATED_PROPERTY));
+
+        // Remove one destination file, and expect only that variant to be compiled
+        Files.delete(releaseDir.resolve(DEST_FILE));
+        compileVariants(debugDir, releaseDir, reportFile, stateFile);
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"compiled\": 1,"));
+        assertTrue(json.contains("\"upToDate\": 1,"));
+    }
+
+    private void compileVariants(Path debugDir, Path releaseDir, Path reportFile, Path stateFile) {
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setReportFile(reportFile.toString());
+        fasm.setStateFile(stateFile.toString());
+        fasm.addConfiguredVariant(variant("debug", debugDir, "-d DEBUG=1"));
+        fasm.addConfiguredVariant(variant("release", releaseDir, "-d DEBUG=0"));
+        fasm.execute();
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecute_VariantsWithSameDestDir() {
+        fasm.setIncludes(SRC_FILE);
+        fasm.addConfiguredVariant(variant("debug", Paths.get(DEST_DIR), "-d DEBUG=1"));
+        fasm.addConfiguredVariant(variant("release", null, "-d DEBUG=0"));
+        fasm.execute();
+    }
+
+    private static Variant variant(String name, Path destDir, String compilerArg) {
+        Variant variant = new Variant();
+        variant.setName(name);
+        if (destDir != null) {
+            variant.setDestDir(destDir.toString());
+        }
+        CompilerArg arg = new CompilerArg();
+        arg.setValue(compilerArg);
+        variant.addConfiguredCompilerArg(arg);
+        return variant;
+    }
+
+    @Test
+    public void testExecute_Shard() throws Exception {
+        Path srcDir = temporaryFolder.newFolder("src").toPath();
+        List<String> names = asList("a.asm", "b.asm", "c.asm", "d.asm", "e.asm");
+        for (String name : names) {
+            Files.write(srcDir.resolve(name), Files.readAllBytes(SRC_PATH));
+        }
+
+        // Compile each shard to its own destination directory
+        Set<String> compiled = new HashSet<>();
+        int total = 0;
+        for (int i = 1; i <= 2; i++) {
+            Path destDir = temporaryFolder.getRoot().toPath().resolve("shard" + i);
+            createProjectAndTask();
+            fasm.setSrcDir(srcDir.toString());
+            fasm.setDestDir(destDir.toString());
+            fasm.setShard(i + "/2");
+            fasm.execute();
+            assertNull(project.getProperty(ERROR_PROPERTY));
+
+            List<String> destFiles = new ArrayList<>();
+            if (Files.isDirectory(destDir)) {
+                try (Stream<Path> stream = Files.list(destDir)) {
+                    destFiles = stream.map(path -> path.getFileName().toString()).collect(toList());
+                }
+            }
+            compiled.addAll(destFiles);
+            total += destFiles.size();
+        }
+
+        // Expect each source file to be compiled by exactly one shard
+        assertEquals(names.size(), total);
+        assertEquals(names.stream().map(name -> name.replace(".asm", ".o")).collect(toSet()), compiled);
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecute_InvalidShard() {
+        fasm.setShard("3/2");
+        fasm.execute();
+    }
+
+    @Test
+    public void testExecute_NioScanner() throws Exception {
+        // Remove destination file to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+
+        fasm.setIncludes(SRC_FILE);
+        fasm.setScanner("nio");
+        fasm.execute();
+
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertTrue(Files.exists(DEST_PATH));
+
+        // Test again without removing destination file
+        createProjectAndTask();
+        fasm.setIncludes(SRC_FILE);
+        fasm.setScanner("nio");
+        fasm.execute();
+
+        assertNull(project.getProperty(UPDATED_PROPERTY));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecute_InvalidScanner() {
+        fasm.setScanner("foo");
+        fasm.execute();
+    }
+
+    @Test
+    public void testExecute_SingleThread() throws Exception {
+        // Remove destination file to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+
+        // Compile all files, one at a time
+        fasm.setThreads(1);
+
+        // Test
+        fasm.execute();
+
+        // Expect no errors and at least one file updated
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertTrue(Files.exists(DEST_PATH));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecute_InvalidThreads() {
+        fasm.setThreads(0);
+        fasm.execute();
+    }
+
+    @Test
+    public void testExecute_JobServer() throws Exception {
+        // Remove destination file to force a recompile
+        Files.deleteIfExists(DEST_PATH);
+
+        // Without a make jobserver, the job slots of the JVM are used
+        fasm.setJobServer(true);
+        fasm.setThreads(4);
+        fasm.execute();
+
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        assertEquals("true", project.getProperty(UPDATED_PROPERTY));
+        assertTrue(Files.exists(DEST_PATH));
+    }
+
+    @Test
+    public void testExecute_FailFast() throws Exception {
+        Path reportFile = Paths.get(DEST_DIR, "fasm-report.json");
+
+        // Remove destination file, and set invalid memory option to force an error in all files
+        Files.deleteIfExists(DEST_PATH);
+        fasm.setMemory(0);
+        fasm.setThreads(1);
+        fasm.setFailFast(true);
+        fasm.setFailOnError(false);
+        fasm.setReportFile(reportFile.toString());
+
+        fasm.execute();
+
+        // Expect only the first file to fail, and the remaining files to be cancelled or never started
+        assertEquals("true", project.getProperty(ERROR_PROPERTY));
+        String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"failed\": 1,"));
+        assertFalse(json.contains("\"compiled\": 12,"));
+    }
+
+    @Test
+    public void testExecute_Watch() throws Exception {
+        Path srcDir = temporaryFolder.newFolder("src").toPath();
+        Path srcFile = srcDir.resolve(SRC_FILE);
+        Files.copy(SRC_PATH, srcFile);
+
+        BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        project.addBuildListener(new DefaultLogger() {
+            @Override
+            public void messageLogged(BuildEvent event) {
+                messages.add(event.getMessage());
+            }
+        });
+        fasm.setSrcDir(srcDir.toString());
+        fasm.setDestDir(srcDir.toString());
+        fasm.setIncludes(SRC_FILE);
+        fasm.setWatch(true);
+        fasm.setWatchDelay(100);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                fasm.execute();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        thread.start();
+        try {
+            awaitMessage(messages, "Watching ");
+            Path destFile = srcDir.resolve(DEST_FILE);
+            assertTrue(Files.exists(destFile));
+
+            // Change the source file, and expect it to be compiled again
+            Files.write(srcFile, Files.readAllBytes(SRC_PATH));
+            Files.setLastModifiedTime(srcFile, FileTime.fromMillis(Files.getLastModifiedTime(destFile).toMillis() + 2000));
+            String message = awaitMessage(messages, "Watch cycle: ");
+            assertTrue(message, message.contains("1 file(s) compiled"));
+        } finally {
+            thread.interrupt();
+            thread.join(10000);
+        }
+        assertFalse(thread.isAlive());
+        assertNull(failure.get());
+    }
+
+    /**
+     * Waits for a logged message that starts with the given prefix, and returns it.
+     */
+    private static String awaitMessage(BlockingQueue<String> messages, String prefix) throws InterruptedException {
+        while (true) {
+            String message = messages.poll(30, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for message: " + prefix, message);
+            if (message.startsWith(prefix)) {
+                return message;
+            }
+        }
+    }
+
     @Test
     public void testExecute_NonExistingFile() throws Exception {
         // Remove destination file to force a recompile
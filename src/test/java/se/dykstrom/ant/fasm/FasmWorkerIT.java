@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class FasmWorkerIT {
+
+    private static final Path SRC_PATH = Paths.get("src/test/asm/elf.asm");
+    private static final int FILES = 8;
+
+    private static final String ERROR_PROPERTY = "error";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<WorkerServer> servers = new ArrayList<>();
+
+    private Path srcDir;
+    private Path destDir;
+    private Project project;
+    private BlockingQueue<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        srcDir = temporaryFolder.newFolder("src").toPath();
+        destDir = temporaryFolder.getRoot().toPath().resolve("bin");
+        for (int i = 0; i < FILES; i++) {
+            Files.write(srcDir.resolve("file" + i + ".asm"), Files.readAllBytes(SRC_PATH));
+        }
+        project = new Project();
+        messages = new LinkedBlockingQueue<>();
+        project.addBuildListener(new DefaultLogger() {
+            @Override
+            public void messageLogged(BuildEvent event) {
+                messages.add(event.getMessage());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (WorkerServer server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testExecute_Workers() throws Exception {
+        String workers = startWorker(2) + "," + startWorker(1);
+
+        Fasm fasm = createTask(workers);
+        fasm.execute();
+
+        // Expect all files to be compiled, some of them on the workers
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        for (int i = 0; i < FILES; i++) {
+            Path destFile = destDir.resolve("file" + i + ".o");
+            assertTrue(Files.exists(destFile));
+            assertTrue(Files.size(destFile) > 0);
+        }
+        assertTrue(messages.stream().anyMatch(message -> message.startsWith("Compiling ") && message.contains(" on worker ")));
+    }
+
+    @Test
+    public void testExecute_WorkerError() throws Exception {
+        Files.write(srcDir.resolve("file0.asm"), "BOOM\n".getBytes(StandardCharsets.UTF_8));
+        String workers = startWorker(1) + "," + startWorker(1) + "," + startWorker(1);
+
+        Fasm fasm = createTask(workers);
+        fasm.setFailOnError(false);
+        fasm.execute();
+
+        // Expect the error to be reported, with the original path of the source file
+        assertEquals("true", project.getProperty(ERROR_PROPERTY));
+        assertFalse(Files.exists(destDir.resolve("file0.o")));
+        assertTrue(Files.exists(destDir.resolve("file1.o")));
+        assertTrue(messages.stream().anyMatch(message -> message.contains("error: illegal instruction")));
+        assertTrue(messages.stream().noneMatch(message -> message.contains("fasm-sandbox-")));
+    }
+
+    @Test
+    public void testExecute_OptionNotAllowed() throws Exception {
+        String workers = startWorker(2);
+
+        Fasm fasm = createTask(workers);
+        CompilerArg compilerArg = new CompilerArg();
+        compilerArg.setValue("-s " + temporaryFolder.getRoot().toPath().resolve("out.fas"));
+        fasm.addConfiguredCompilerArg(compilerArg);
+        fasm.execute();
+
+        // Expect all files to be compiled locally, since the worker does not accept the option
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        assertTrue(messages.stream().noneMatch(message -> message.contains(" on worker ")));
+    }
+
+    @Test
+    public void testExecute_WorkerNotAvailable() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+
+        // Expect the files to be compiled locally
+        Fasm fasm = createTask("localhost:" + port);
+        fasm.execute();
+        assertNull(project.getProperty(ERROR_PROPERTY));
+        for (int i = 0; i < FILES; i++) {
+            assertTrue(Files.exists(destDir.resolve("file" + i + ".o")));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCompile_Cancelled() throws Exception {
+        // A compiler that never ends
+        Path compiler = temporaryFolder.getRoot().toPath().resolve("hang.sh");
+        Files.write(compiler, "#!/bin/sh\nsleep 60\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(compiler.toFile().setExecutable(true));
+        WorkerServer server = new WorkerServer(compiler.toString(), 1, messages::add);
+        servers.add(server);
+        WorkerClient client = new WorkerClient("localhost", server.start(InetAddress.getLoopbackAddress(), 0));
+        Path srcFile = srcDir.resolve("file0.asm");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ProcessOutput output = new ProcessOutput()) {
+            Future<Integer> future = executor.submit(() -> client.compile(srcFile, singletonList(srcFile), emptyList(), emptyList(),
+                    destDir.resolve("file0.o"), output, line -> { }, 0));
+            Thread.sleep(1000);
+            future.cancel(true);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Expect the worker to kill the compile process
+        String message;
+        do {
+            message = messages.take();
+        } while (!message.endsWith(" cancelled"));
+    }
+
+    @Test
+    public void testFasmWorker() throws Exception {
+        FasmWorker worker = new FasmWorker();
+        worker.setProject(project);
+        worker.setThreads(2);
+        worker.setPortProperty("worker.port");
+        Thread thread = new Thread(worker::execute);
+        thread.start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (project.getProperty("worker.port") == null && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            WorkerClient client = WorkerClient.parse("localhost:" + project.getProperty("worker.port"));
+            assertEquals(2, client.getSlots());
+        } finally {
+            thread.interrupt();
+            thread.join(10000);
+        }
+        assertFalse(thread.isAlive());
+    }
+
+    private Fasm createTask(String workers) {
+        Fasm fasm = new Fasm();
+        fasm.setProject(project);
+        fasm.setSrcDir(srcDir.toString());
+        fasm.setDestDir(destDir.toString());
+        fasm.setErrorProperty(ERROR_PROPERTY);
+        fasm.setThreads(1);
+        fasm.setWorkers(workers);
+        return fasm;
+    }
+
+    private String startWorker(int slots) throws IOException {
+        WorkerServer server = new WorkerServer("fasm", slots, message -> { });
+        servers.add(server);
+        return "localhost:" + server.start(InetAddress.getLoopbackAddress(), 0);
+    }
+}
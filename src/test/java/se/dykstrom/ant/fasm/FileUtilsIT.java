@@ -83,6 +83,22 @@ public class FileUtilsIT {
         FileUtils.getDestFileType(Paths.get("does-not-exist.asm"));
     }
 
+    @Test
+    public void testHash() throws Exception {
+        Path[] paths = createTempFiles(10);
+        Files.write(paths[0], new byte[200_000]);
+        Files.write(paths[1], new byte[200_001]);
+
+        assertEquals(64, hash(paths[0]).length());
+        assertEquals(hash(paths[0]), hash(paths[0]));
+        assertNotEquals(hash(paths[0]), hash(paths[1]));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testHash_Exception() {
+        hash(Paths.get("does-not-exist.tmp"));
+    }
+
     @Test
     public void testGetDestPath() {
         assertEquals(Paths.get("c:/Files/out/file.exe"), getDestPath("file.asm", Paths.get("c:/Files/out"), ".exe"));
@@ -18,8 +18,13 @@ package se.dykstrom.ant.fasm;
 
 import org.junit.Test;
 
+import java.nio.file.Paths;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static se.dykstrom.ant.fasm.FileUtils.getBasename;
+import static se.dykstrom.ant.fasm.FileUtils.getTempPath;
+import static se.dykstrom.ant.fasm.FileUtils.hash;
 
 public class FileUtilsTest {
 
@@ -34,4 +39,17 @@ public class FileUtilsTest {
         assertEquals("/usr/home/file", getBasename("/usr/home/file.asm"));
         assertEquals("/usr/home/file", getBasename("/usr/home/file"));
     }
+
+    @Test
+    public void testGetTempPath() {
+        assertEquals(Paths.get("bin/.fasm-tmp-file.exe"), getTempPath(Paths.get("bin/file.exe")));
+        assertEquals(Paths.get(".fasm-tmp-file.o"), getTempPath(Paths.get("file.o")));
+    }
+
+    @Test
+    public void testHash() {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", hash(new String[0]));
+        assertEquals(hash("fasm", "-p", "10"), hash("fasm", "-p", "10"));
+        assertNotEquals(hash("fasm", "-p", "10"), hash("fasm", "-p", "1", "0"));
+    }
 }
@@ -17,8 +17,14 @@
 package se.dykstrom.ant.fasm;
 
 import org.apache.tools.ant.BuildException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
@@ -27,6 +33,9 @@ import static se.dykstrom.ant.fasm.FormatUtils.getFormat;
 
 public class FormatUtilsTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testGetFormat() {
         String format0 = "PE console";
@@ -43,6 +52,44 @@ public class FormatUtilsTest {
         assertEquals("binary", getFormat(Stream.of("mov eax, 0")));
     }
 
+    @Test
+    public void testGetFormat_File() throws Exception {
+        assertEquals("pe console", getFormat(write("format PE console"), 0));
+        assertEquals("pe64 console dll", getFormat(write("; format ELF", "entry main", "\tFORMAT PE64 console DLL ; comment"), 0));
+        assertEquals("binary as 'd;t'", getFormat(write("format binary as 'd;t'"), 0));
+        assertEquals("mz", getFormat(write("format mz\r\nmov ax, 0"), 0));
+        assertEquals("elf", getFormat(write("formatted db 0", "format ELF"), 0));
+    }
+
+    @Test
+    public void testGetFormat_FileNoFormat() throws Exception {
+        assertEquals("binary", getFormat(write("mov eax, 0", "; format PE console"), 0));
+        assertEquals("binary", getFormat(write(""), 0));
+    }
+
+    @Test
+    public void testGetFormat_FileLimit() throws Exception {
+        char[] header = new char[100_000];
+        Arrays.fill(header, ';');
+        Path file = write(new String(header), "format PE GUI");
+
+        assertEquals("pe gui", getFormat(file, 0));
+        assertEquals("pe gui", getFormat(file, 200_000));
+        assertEquals("binary", getFormat(file, 10_000));
+    }
+
+    @Test
+    public void testGetFormat_FileLimitSmallerThanBuffer() throws Exception {
+        char[] header = new char[100];
+        Arrays.fill(header, ';');
+        Path file = write(new String(header), "format PE GUI", "mov eax, 0");
+
+        assertEquals("pe gui", getFormat(file, 200));
+        // The limit ends in the middle of the format directive
+        assertEquals("binary", getFormat(file, 110));
+        assertEquals("binary", getFormat(file, 50));
+    }
+
     @Test
     public void testGetFileType() {
         assertEquals(".bin", getFileType("binary"));
@@ -66,4 +113,8 @@ public class FormatUtilsTest {
     public void testGetFileType_Exception() {
         getFileType("foo");
     }
+
+    private Path write(String... lines) throws Exception {
+        return Files.write(folder.newFile().toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
 }
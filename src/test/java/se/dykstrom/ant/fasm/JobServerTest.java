@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static se.dykstrom.ant.fasm.JobServer.getPath;
+
+public class JobServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGetPath() {
+        assertNull(getPath(null));
+        assertNull(getPath(""));
+        assertNull(getPath("-j4"));
+        assertNull(getPath("-j --jobserver-fds=-1,-1"));
+        assertNull(getPath("-j4 --jobserver-auth=998,999"));
+        assertEquals(Paths.get("/tmp/GMfifo1"), getPath("-j4 --jobserver-auth=fifo:/tmp/GMfifo1"));
+        assertEquals(Paths.get("/tmp/GMfifo2"), getPath("--jobserver-auth=fifo:/tmp/GMfifo1 --jobserver-auth=fifo:/tmp/GMfifo2"));
+    }
+
+    @Test
+    public void testGetPath_RegularFile() throws Exception {
+        Path fdDir = Paths.get("/proc/self/fd");
+        assumeTrue("proc file system not available", Files.isDirectory(fdDir));
+        Path file = folder.newFile("log.txt").toPath();
+        try (RandomAccessFile ignore = new RandomAccessFile(file.toFile(), "rw");
+             Stream<Path> fds = Files.list(fdDir)) {
+            // Find the file descriptor of the open file, as if make had not passed its descriptors on
+            Path fd = fds.filter(path -> file.equals(readLink(path))).findFirst().orElse(null);
+            assertNotNull(fd);
+            assertTrue(Files.exists(fd));
+            String number = fd.getFileName().toString();
+            assertNull(getPath("-j4 --jobserver-auth=" + number + "," + number));
+        }
+    }
+
+    @Test
+    public void testIsPipe() throws Exception {
+        Path fifo = folder.getRoot().toPath().resolve("jobserver");
+        assumeTrue("mkfifo not available", mkfifo(fifo));
+        assertTrue(JobServer.isPipe(fifo));
+        assertFalse(JobServer.isPipe(folder.newFile("regular").toPath()));
+    }
+
+    @Test
+    public void testGetInstance_NoJobServer() {
+        JobServer jobServer = JobServer.getInstance(null);
+        assertTrue(jobServer instanceof JobServer.Local);
+        assertSame(jobServer, JobServer.getInstance("-j4"));
+    }
+
+    @Test
+    public void testMake() throws Exception {
+        // A jobserver stub: a fifo with two tokens, like make -j3 would create
+        Path fifo = folder.getRoot().toPath().resolve("jobserver");
+        assumeTrue("mkfifo not available", mkfifo(fifo));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (RandomAccessFile stub = new RandomAccessFile(fifo.toFile(), "rw")) {
+            new FileOutputStream(stub.getFD()).write(new byte[]{'+', '-'});
+
+            JobServer jobServer = new JobServer.Make(fifo);
+            assertEquals(JobServer.IMPLICIT_TOKEN, jobServer.acquire());
+            assertEquals('+', jobServer.acquire());
+            assertEquals('-', jobServer.acquire());
+
+            // All job slots are in use
+            Future<Integer> future = executor.submit(jobServer::acquire);
+            try {
+                future.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected acquire to wait");
+            } catch (TimeoutException e) {
+                // Expected
+            }
+
+            // Releasing the implicit token lets the waiting thread continue
+            jobServer.release(JobServer.IMPLICIT_TOKEN);
+            assertEquals(JobServer.IMPLICIT_TOKEN, (int) future.get(10, TimeUnit.SECONDS));
+
+            // Expect the tokens to be written back to the jobserver
+            jobServer.release('+');
+            jobServer.release('-');
+            FileInputStream input = new FileInputStream(stub.getFD());
+            assertEquals(2, input.available());
+            assertEquals('+', input.read());
+            assertEquals('-', input.read());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLocal() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            JobServer jobServer = new JobServer.Local(1);
+            int token = jobServer.acquire();
+
+            Future<Integer> future = executor.submit(jobServer::acquire);
+            try {
+                future.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected acquire to wait");
+            } catch (TimeoutException e) {
+                // Expected
+            }
+
+            jobServer.release(token);
+            future.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Path readLink(Path path) {
+        try {
+            return Files.readSymbolicLink(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean mkfifo(Path fifo) {
+        try {
+            return new ProcessBuilder("mkfifo", fifo.toString()).inheritIO().start().waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
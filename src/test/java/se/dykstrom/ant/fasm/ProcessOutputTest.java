@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class ProcessOutputTest {
+
+    @Test
+    public void testAppend() throws Exception {
+        try (ProcessOutput output = new ProcessOutput()) {
+            output.append("flat assembler  version 1.73.30");
+            output.append("error: illegal instruction.");
+
+            assertFalse(output.isSpilled());
+            assertEquals(60, output.length());
+            assertEquals("flat assembler  version 1.73.30\nerror: illegal instruction.\n", output.getText());
+        }
+    }
+
+    @Test
+    public void testAppend_Spilled() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        try (ProcessOutput output = new ProcessOutput(100)) {
+            for (int i = 0; i < 50; i++) {
+                String line = "display line " + i;
+                output.append(line);
+                expected.append(line).append('\n');
+            }
+
+            assertTrue(output.isSpilled());
+            assertEquals(expected.length(), output.length());
+            assertEquals(expected.toString(), output.getText());
+
+            // Appending after reading the text works too
+            output.append("done");
+            assertEquals(expected + "done\n", output.getText());
+        }
+    }
+
+    @Test
+    public void testForEachLine() throws Exception {
+        for (int threshold : new int[]{ProcessOutput.DEFAULT_THRESHOLD, 10}) {
+            try (ProcessOutput output = new ProcessOutput(threshold)) {
+                output.append("first line");
+                output.append("");
+                output.append("last line");
+
+                List<String> lines = new ArrayList<>();
+                output.forEachLine(lines::add);
+                assertEquals(asList("first line", "", "last line"), lines);
+            }
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        ProcessOutput output = new ProcessOutput(10);
+        output.append("more than ten characters");
+        output.close();
+        output.close();
+    }
+
+    @Test
+    public void testAppend_AfterClose() throws Exception {
+        ProcessOutput output = new ProcessOutput(20);
+        output.append("flat assembler");
+        output.close();
+        // A late line must not create a spill file, since nobody would delete it
+        output.append("more than twenty characters");
+        assertFalse(output.isSpilled());
+        assertEquals(15, output.length());
+    }
+}
@@ -18,26 +18,41 @@ package se.dykstrom.ant.fasm;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class ProcessUtilsIT {
 
     @Test
-    public void testSetUpProcess() throws Exception {
-        Process process = null;
-        try {
+    public void testExecute() throws Exception {
+        List<String> lines = new ArrayList<>();
+        try (ProcessOutput output = new ProcessOutput()) {
             // Start process and wait for it to finish
-            process = ProcessUtils.setUpProcess("fasm");
-            assertFalse(process.isAlive());
-
-            String output = ProcessUtils.readOutput(process);
-            assertTrue(output.contains("flat assembler"));
-            assertTrue(output.contains("optional settings"));
-        } finally {
-            if (process != null) {
-                ProcessUtils.tearDownProcess(process);
-            }
+            ProcessUtils.execute(new String[]{"fasm"}, output, lines::add, 0);
+
+            String text = output.getText();
+            assertTrue(text.contains("flat assembler"));
+            assertTrue(text.contains("optional settings"));
+            assertEquals(String.join("\n", lines) + "\n", text);
         }
     }
+
+    @Test
+    public void testResolveCommand() {
+        assertNotNull(ProcessUtils.resolveCommand("fasm"));
+        assertNull(ProcessUtils.resolveCommand("does-not-exist"));
+    }
+
+    @Test
+    public void testGetCompilerId() throws Exception {
+        String compilerId = ProcessUtils.getCompilerId("fasm");
+        assertTrue(compilerId.contains("flat assembler"));
+        assertFalse(compilerId.contains("\n"));
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests process management by running a child JVM that either writes a lot of output, or sleeps.
+ */
+public class ProcessUtilsTest {
+
+    private static final String JAVA = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+    @Test
+    public void testExecute_LotsOfOutput() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        try (ProcessOutput output = new ProcessOutput()) {
+            int exitValue = ProcessUtils.execute(child("print", "100000"), output, line -> count.incrementAndGet(), 60000);
+
+            assertEquals(0, exitValue);
+            assertEquals(100_000, count.get());
+            assertTrue(output.isSpilled());
+            assertTrue(output.getText().endsWith("line 99999\n"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testExecute_Timeout() throws Exception {
+        try (ProcessOutput output = new ProcessOutput()) {
+            ProcessUtils.execute(child("sleep", "60000"), output, line -> { }, 1000);
+            fail("Expected TimeoutException");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testExecute_Interrupted() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ProcessOutput output = new ProcessOutput()) {
+            Future<Integer> future = executor.submit(() -> ProcessUtils.execute(child("sleep", "60000"), output, line -> { }, 0));
+            Thread.sleep(1000);
+            future.cancel(true);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String[] child(String mode, String argument) {
+        return new String[]{JAVA, "-cp", System.getProperty("java.class.path"), Child.class.getName(), mode, argument};
+    }
+
+    /**
+     * The main class of the child JVM.
+     */
+    public static class Child {
+
+        public static void main(String[] args) throws Exception {
+            int n = Integer.parseInt(args[1]);
+            if ("print".equals(args[0])) {
+                for (int i = 0; i < n; i++) {
+                    System.out.println("line " + i);
+                }
+            } else {
+                Thread.sleep(n);
+            }
+        }
+    }
+}
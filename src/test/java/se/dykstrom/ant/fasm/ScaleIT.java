@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the task against a large synthetic source tree, using a shell script stand-in for the flat
+ * assembler, and reports the task overhead, that is, the time not spent in the compiler, the peak
+ * heap usage, and the peak number of open file handles. The test runs without fasm installed, but
+ * requires a Unix-like shell. It is configured using the following system properties:
+ * <ul>
+ *     <li>scale.depth - the number of directory levels below the root directory (default 2)</li>
+ *     <li>scale.fanout - the number of subdirectories in each directory (default 4)</li>
+ *     <li>scale.files - the number of source files in each directory (default 10)</li>
+ *     <li>scale.includes - the average number of include directives in each source file (default 2)</li>
+ *     <li>scale.includefiles - the number of include files (default 50)</li>
+ *     <li>scale.formats - the format mix (default "elf64=4,pe64=2,binary=1,ms64 coff=1,mz=1")</li>
+ *     <li>scale.latency - the compiler latency in milliseconds (default 0)</li>
+ *     <li>scale.output - the number of extra lines of compiler output for each source file (default 0)</li>
+ *     <li>scale.failures - the percentage of source files that fail to compile (default 0)</li>
+ *     <li>scale.threads - the number of worker threads (default is the number of available processors)</li>
+ *     <li>scale.scanner - the scanner to use, "ant" or "nio" (default "ant")</li>
+ * </ul>
+ */
+public class ScaleIT {
+
+    private static final Path STAND_IN = Paths.get("src/test/scale/fasm");
+
+    private static final Pattern PATTERN_NUMBER = Pattern.compile("\"(\\w+)\": ([0-9.]+)");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final int depth = Integer.getInteger("scale.depth", 2);
+    private final int fanOut = Integer.getInteger("scale.fanout", 4);
+    private final int filesPerDirectory = Integer.getInteger("scale.files", 10);
+    private final double includeDensity = Double.parseDouble(System.getProperty("scale.includes", "2"));
+    private final int includeFiles = Integer.getInteger("scale.includefiles", 50);
+    private final String formatMix = System.getProperty("scale.formats", "elf64=4,pe64=2,binary=1,ms64 coff=1,mz=1");
+    private final int latency = Integer.getInteger("scale.latency", 0);
+    private final int output = Integer.getInteger("scale.output", 0);
+    private final int failures = Integer.getInteger("scale.failures", 0);
+    private final int threads = Integer.getInteger("scale.threads", Runtime.getRuntime().availableProcessors());
+    private final String scanner = System.getProperty("scale.scanner", "ant");
+
+    private Path root;
+    private Path compiler;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue("Requires a Unix-like shell", new File("/bin/sh").canExecute());
+        assertTrue("Missing stand-in compiler; check working directory", Files.exists(STAND_IN));
+
+        root = temporaryFolder.getRoot().toPath();
+        compiler = root.resolve("fasm");
+        String script = "#!/bin/sh\n" +
+                "FASM_STANDIN_LATENCY=" + latency + "\n" +
+                "FASM_STANDIN_OUTPUT=" + output + "\n" +
+                "FASM_STANDIN_FAILURE_RATE=" + failures + "\n" +
+                "export FASM_STANDIN_LATENCY FASM_STANDIN_OUTPUT FASM_STANDIN_FAILURE_RATE\n" +
+                "exec /bin/sh '" + STAND_IN.toAbsolutePath() + "' \"$@\"\n";
+        Files.write(compiler, script.getBytes(StandardCharsets.UTF_8));
+        assertTrue(compiler.toFile().setExecutable(true));
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        ScaleTree tree = new ScaleTree(depth, fanOut, filesPerDirectory, includeDensity, includeFiles, formatMix);
+        int sourceFiles = tree.generate(root);
+        System.out.printf("Scale test: %d source files, %d include files, %d thread(s), %s scanner, latency %d ms, output %d line(s), failure rate %d%%%n",
+                sourceFiles, includeFiles, threads, scanner, latency, output, failures);
+
+        long openFilesBefore = getOpenFiles();
+
+        Result clean = build();
+        System.out.println("Clean build:  " + clean);
+        assertEquals(sourceFiles, clean.files);
+        assertEquals(sourceFiles, clean.compiled);
+        if (failures == 0) {
+            assertEquals(0, clean.failed);
+        }
+
+        Result noop = build();
+        System.out.println("No-op build:  " + noop);
+        assertEquals(sourceFiles, noop.files);
+        if (failures == 0) {
+            assertEquals(0, noop.compiled);
+        }
+
+        // Allow for some file handles opened by the JVM itself
+        long openFilesAfter = getOpenFiles();
+        assertTrue("Leaked file handles: " + openFilesBefore + " before, " + openFilesAfter + " after",
+                openFilesAfter <= openFilesBefore + 10);
+    }
+
+    /**
+     * Builds the source tree once, and returns the measurements.
+     */
+    private Result build() throws Exception {
+        Path reportFile = root.resolve("report.json");
+
+        Project project = new Project();
+        Fasm fasm = new Fasm();
+        fasm.setProject(project);
+        fasm.setSrcDir(root.resolve("src").toString());
+        fasm.setDestDir(root.resolve("bin").toString());
+        fasm.setCompiler(compiler.toString());
+        fasm.setDepFile(root.resolve("fasm.deps").toString());
+        fasm.setReportFile(reportFile.toString());
+        fasm.setThreads(threads);
+        fasm.setScanner(scanner);
+        fasm.setFailOnError(false);
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+
+        Sampler sampler = new Sampler();
+        sampler.start();
+        try {
+            fasm.execute();
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+        }
+
+        Result result = new Result();
+        String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        Matcher matcher = PATTERN_NUMBER.matcher(json.substring(0, json.indexOf("\"percentiles\"")));
+        while (matcher.find()) {
+            result.set(matcher.group(1), Double.parseDouble(matcher.group(2)));
+        }
+        result.threads = threads;
+        result.peakHeap = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .mapToLong(pool -> pool.getPeakUsage().getUsed())
+                .sum();
+        result.peakOpenFiles = sampler.peak.get();
+        return result;
+    }
+
+    /**
+     * Returns the number of open file handles in this JVM, or -1 if unknown.
+     */
+    private static long getOpenFiles() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) bean).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    /**
+     * Samples the number of open file handles until interrupted, and keeps track of the peak.
+     */
+    private static class Sampler extends Thread {
+
+        private final AtomicLong peak = new AtomicLong(-1);
+
+        Sampler() {
+            super("scale-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                peak.accumulateAndGet(getOpenFiles(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            peak.accumulateAndGet(getOpenFiles(), Math::max);
+        }
+    }
+
+    /**
+     * The measurements of a single build.
+     */
+    private static class Result {
+
+        private long files;
+        private long compiled;
+        private long failed;
+        private double wallMillis;
+        private double assemblyMillis;
+        private double scanMillis;
+        private double formatMillis;
+        private double checkMillis;
+        private int threads;
+        private long peakHeap;
+        private long peakOpenFiles;
+
+        void set(String name, double value) {
+            switch (name) {
+                case "files": files = (long) value; break;
+                case "compiled": compiled = (long) value; break;
+                case "failed": failed = (long) value; break;
+                case "wallMillis": wallMillis = value; break;
+                case "assemblyMillis": assemblyMillis = value; break;
+                case "scanMillis": scanMillis = value; break;
+                case "formatMillis": formatMillis = value; break;
+                case "checkMillis": checkMillis = value; break;
+                default: break;
+            }
+        }
+
+        /**
+         * Returns the time not spent in the compiler. The compiler time is divided by the number of
+         * threads, assuming that the compile processes were evenly spread over the worker threads.
+         */
+        double getOverheadMillis() {
+            return wallMillis - assemblyMillis / Math.max(1, Math.min(threads, compiled));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d compiled, %d failed, wall %.0f ms, compiler %.0f ms, overhead %.0f ms " +
+                            "(scan %.0f ms, format %.0f ms, check %.0f ms), peak heap %d MB, peak open files %d",
+                    compiled, failed, wallMillis, assemblyMillis, getOverheadMillis(),
+                    scanMillis, formatMillis, checkMillis, peakHeap / (1024 * 1024), peakOpenFiles);
+        }
+    }
+}
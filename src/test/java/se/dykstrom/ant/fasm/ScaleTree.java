@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a large synthetic source tree for the scale tests. The tree has a configurable depth
+ * and fan-out, a configurable number of source files in each directory, and a shared directory of
+ * include files. Each source file includes a random number of include files, and some include
+ * files include other include files. The format directive of each source file is chosen randomly,
+ * according to a weighted format mix. The same parameters always generate the same tree.
+ */
+final class ScaleTree {
+
+    /** The number of lines of code in each generated file. */
+    private static final int LINES = 20;
+
+    /** The directory that contains the include files, relative to the root of the tree. */
+    static final String INCLUDE_DIR = "include";
+
+    private final int depth;
+    private final int fanOut;
+    private final int filesPerDirectory;
+    private final double includeDensity;
+    private final int includeFiles;
+    private final Map<String, Integer> formatMix;
+    private final Random random = new Random(4711);
+
+    private int sourceFiles;
+
+    /**
+     * Creates a new source tree generator.
+     *
+     * @param depth The number of directory levels below the root directory.
+     * @param fanOut The number of subdirectories in each directory that is not a leaf.
+     * @param filesPerDirectory The number of source files in each directory.
+     * @param includeDensity The average number of include directives in each source file.
+     * @param includeFiles The number of include files to generate.
+     * @param formatMix The format mix, for example "elf64=4,pe=2,binary=1".
+     */
+    ScaleTree(int depth, int fanOut, int filesPerDirectory, double includeDensity, int includeFiles, String formatMix) {
+        this.depth = depth;
+        this.fanOut = fanOut;
+        this.filesPerDirectory = filesPerDirectory;
+        this.includeDensity = includeDensity;
+        this.includeFiles = includeFiles;
+        this.formatMix = parseFormatMix(formatMix);
+    }
+
+    private static Map<String, Integer> parseFormatMix(String formatMix) {
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for (String part : formatMix.split(",")) {
+            String[] keyValue = part.split("=");
+            map.put(keyValue[0].trim(), (keyValue.length > 1) ? Integer.parseInt(keyValue[1].trim()) : 1);
+        }
+        return map;
+    }
+
+    /**
+     * Generates the source tree in the given root directory.
+     *
+     * @return The number of source files generated.
+     */
+    int generate(Path root) throws IOException {
+        sourceFiles = 0;
+        Path includeDir = root.resolve(INCLUDE_DIR);
+        Files.createDirectories(includeDir);
+        List<Path> includes = new ArrayList<>();
+        for (int i = 0; i < includeFiles; i++) {
+            includes.add(includeDir.resolve("inc" + i + ".inc"));
+        }
+        for (int i = 0; i < includeFiles; i++) {
+            // Every include file but the last in each chain of four includes the next one
+            List<Path> nested = (i % 4 != 3 && i + 1 < includeFiles) ? includes.subList(i + 1, i + 2) : new ArrayList<>();
+            writeFile(includes.get(i), null, nested);
+        }
+        generateDirectory(root.resolve("src"), 0, includes);
+        return sourceFiles;
+    }
+
+    private void generateDirectory(Path directory, int level, List<Path> includes) throws IOException {
+        Files.createDirectories(directory);
+        for (int i = 0; i < filesPerDirectory; i++) {
+            List<Path> selected = new ArrayList<>();
+            if (!includes.isEmpty()) {
+                // Choose between 0 and twice the include density include files, to get the right average
+                int count = (int) Math.round(random.nextDouble() * 2 * includeDensity);
+                for (int j = 0; j < count; j++) {
+                    selected.add(includes.get(random.nextInt(includes.size())));
+                }
+            }
+            writeFile(directory.resolve("file" + i + ".asm"), nextFormat(), selected);
+            sourceFiles++;
+        }
+        if (level < depth) {
+            for (int i = 0; i < fanOut; i++) {
+                generateDirectory(directory.resolve("dir" + i), level + 1, includes);
+            }
+        }
+    }
+
+    private String nextFormat() {
+        int total = formatMix.values().stream().mapToInt(Integer::intValue).sum();
+        int value = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : formatMix.entrySet()) {
+            value -= entry.getValue();
+            if (value < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Invalid format mix: " + formatMix);
+    }
+
+    private static void writeFile(Path file, String format, List<Path> includes) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("; Generated by the scale tests");
+            writer.newLine();
+            if (format != null) {
+                writer.write("format " + format);
+                writer.newLine();
+            }
+            for (Path include : includes) {
+                String relative = file.getParent().relativize(include).toString().replace('\\', '/');
+                writer.write("include '" + relative + "'");
+                writer.newLine();
+            }
+            for (int i = 0; i < LINES; i++) {
+                writer.write("    mov eax, " + i);
+                writer.newLine();
+            }
+        }
+    }
+}
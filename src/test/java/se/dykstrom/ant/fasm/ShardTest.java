@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class ShardTest {
+
+    private static final List<String> NAMES = asList("a.asm", "b.asm", "c.asm", "d.asm", "e.asm", "f.asm", "g.asm", "h.asm");
+
+    @Test
+    public void testParse() {
+        Shard shard = Shard.parse("2/3");
+        assertEquals(2, shard.getIndex());
+        assertEquals(3, shard.getCount());
+        assertEquals("2/3", shard.toString());
+        assertEquals("1/1", Shard.parse(" 1/1 ").toString());
+    }
+
+    @Test
+    public void testParse_Invalid() {
+        for (String value : Arrays.asList("", "1", "0/2", "3/2", "1/0", "-1/2", "a/b", "1/2/3", "1/99999999999")) {
+            try {
+                Shard.parse(value);
+                fail("Expected exception for '" + value + "'");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testSelect_WithoutHistory() {
+        assertPartition(NAMES, 3, name -> -1);
+    }
+
+    @Test
+    public void testSelect_WithHistory() {
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a.asm", 8L);
+        durations.put("b.asm", 7L);
+        durations.put("c.asm", 6L);
+        durations.put("d.asm", 5L);
+        durations.put("e.asm", 4L);
+        List<String> names = asList("a.asm", "b.asm", "c.asm", "d.asm", "e.asm");
+
+        // Longest processing time first: 8 -> 1, 7 -> 2, 6 -> 2, 5 -> 1, 4 -> 1
+        assertEquals(asList("a.asm", "d.asm", "e.asm"), new Shard(1, 2).select(names, durations::get));
+        assertEquals(asList("b.asm", "c.asm"), new Shard(2, 2).select(names, durations::get));
+        assertPartition(names, 2, durations::get);
+    }
+
+    @Test
+    public void testSelect_PartialHistory() {
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a.asm", 100L);
+        durations.put("b.asm", 50L);
+        assertPartition(NAMES, 4, name -> durations.getOrDefault(name, -1L));
+    }
+
+    @Test
+    public void testSelect_IndependentOfOrder() {
+        List<String> reversed = new ArrayList<>(NAMES);
+        Collections.reverse(reversed);
+        for (int i = 1; i <= 3; i++) {
+            Shard shard = new Shard(i, 3);
+            assertEquals(shard.select(NAMES, name -> name.charAt(0)), shard.select(reversed, name -> name.charAt(0)));
+            assertEquals(shard.select(NAMES, name -> -1), shard.select(reversed, name -> -1));
+        }
+    }
+
+    /**
+     * Asserts that all shards together contain each name exactly once.
+     */
+    private static void assertPartition(List<String> names, int count, ToLongFunction<String> durations) {
+        Set<String> all = new HashSet<>();
+        int total = 0;
+        for (int i = 1; i <= count; i++) {
+            List<String> selected = new Shard(i, count).select(names, durations);
+            all.addAll(selected);
+            total += selected.size();
+        }
+        assertEquals(new HashSet<>(names), all);
+        assertEquals(names.size(), total);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.FilenameSelector;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class SourceScannerTest {
+
+    private static final String[] FILES = {
+            "a.asm",
+            "b.inc",
+            "foo/c.asm",
+            "foo/bar/d.asm",
+            "foo/bar/e.inc",
+            "foo/baz/f.asm",
+            ".git/objects/g.asm",
+            "other/h.asm"
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Project project = new Project();
+
+    private final Supplier<SourceScanner> factory;
+
+    public SourceScannerTest(String name, Supplier<SourceScanner> factory) {
+        this.factory = factory;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> parameters() {
+        return Arrays.asList(
+                new Object[]{"ant", (Supplier<SourceScanner>) AntSourceScanner::new},
+                new Object[]{"ant-index", (Supplier<SourceScanner>) () -> new AntSourceScanner(new DirectoryIndex())},
+                new Object[]{"nio", (Supplier<SourceScanner>) NioSourceScanner::new}
+        );
+    }
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = temporaryFolder.getRoot();
+        for (String file : FILES) {
+            Path path = root.toPath().resolve(file);
+            Files.createDirectories(path.getParent());
+            Files.createFile(path);
+        }
+    }
+
+    @Test
+    public void testDefaultExcludes() {
+        assertSameFiles(fileSet -> fileSet.setIncludes("**/*.asm"));
+    }
+
+    @Test
+    public void testNoDefaultExcludes() {
+        assertSameFiles(fileSet -> {
+            fileSet.setIncludes("**/*.asm");
+            fileSet.setDefaultexcludes(false);
+        });
+    }
+
+    @Test
+    public void testIncludesAndExcludes() {
+        assertSameFiles(fileSet -> {
+            fileSet.setIncludes("foo/**/*.asm");
+            fileSet.setExcludes("**/bar/*.asm");
+        });
+    }
+
+    @Test
+    public void testExcludeDirectory() {
+        assertSameFiles(fileSet -> fileSet.setExcludes("foo/"));
+    }
+
+    @Test
+    public void testCaseInsensitive() {
+        assertSameFiles(fileSet -> {
+            fileSet.setIncludes("FOO/**/*.ASM");
+            fileSet.setCaseSensitive(false);
+        });
+    }
+
+    @Test
+    public void testSelector() {
+        assertSameFiles(fileSet -> {
+            FilenameSelector selector = new FilenameSelector();
+            selector.setName("**/d.*");
+            fileSet.addFilename(selector);
+        });
+    }
+
+    @Test
+    public void testNoFiles() {
+        try (SourceScanner scanner = newScanner(fileSet -> fileSet.setIncludes("**/*.tmp"))) {
+            assertFalse(scanner.hasNext());
+        }
+    }
+
+    @Test
+    public void testAttributes() {
+        try (SourceScanner scanner = newScanner(fileSet -> fileSet.setIncludes("a.asm"))) {
+            assertEquals("a.asm", scanner.next());
+            BasicFileAttributes attributes = scanner.getAttributes();
+            if (attributes != null) {
+                assertTrue(attributes.isRegularFile());
+                assertEquals(0, attributes.size());
+            }
+            assertFalse(scanner.hasNext());
+        }
+    }
+
+    /**
+     * Asserts that a source scanner configured by {@code configurer} finds the same files
+     * as a directory scanner configured the same way.
+     */
+    private void assertSameFiles(Consumer<FileSet> configurer) {
+        FileSet fileSet = newFileSet(configurer);
+        DirectoryScanner expectedScanner = fileSet.getDirectoryScanner(project);
+        List<String> expected = new ArrayList<>(Arrays.asList(expectedScanner.getIncludedFiles()));
+        expected.sort(null);
+
+        List<String> actual = new ArrayList<>();
+        try (SourceScanner scanner = newScanner(configurer)) {
+            scanner.forEachRemaining(actual::add);
+        }
+        actual.sort(null);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+    private SourceScanner newScanner(Consumer<FileSet> configurer) {
+        SourceScanner scanner = factory.get();
+        newFileSet(configurer).setupDirectoryScanner(scanner, project);
+        return scanner;
+    }
+
+    private FileSet newFileSet(Consumer<FileSet> configurer) {
+        FileSet fileSet = new FileSet();
+        fileSet.setProject(project);
+        fileSet.setDir(root);
+        configurer.accept(fileSet);
+        return fileSet;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.dykstrom.ant.fasm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class SymbolFileTest {
+
+    private static final int HEADER_LENGTH = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRead_MainFileOnly() throws Exception {
+        Builder builder = new Builder("main.asm");
+        builder.line(0, 1, 0).symbol("mov").symbol("eax").end();
+
+        SymbolFile symbolFile = SymbolFile.read(builder.build());
+
+        assertEquals(asList(Paths.get("main.asm")), asList(symbolFile.getSourceFiles().toArray()));
+        assertTrue(symbolFile.getFileReferences().isEmpty());
+    }
+
+    @Test
+    public void testRead_IncludedFile() throws Exception {
+        Builder builder = new Builder("main.asm");
+        builder.line(0, 1, 0).symbol("include").string("inc/macros.inc").end();
+        builder.line(builder.lastString, 1, 0).symbol("macro").symbol("m").end();
+        builder.line(0, 2, 0).symbol("ret").end();
+
+        SymbolFile symbolFile = SymbolFile.read(builder.build());
+
+        assertEquals(asList(Paths.get("main.asm"), Paths.get("inc/macros.inc")), asList(symbolFile.getSourceFiles().toArray()));
+    }
+
+    @Test
+    public void testRead_FileDirective() throws Exception {
+        Builder builder = new Builder("main.asm");
+        builder.line(0, 1, 0).symbol("include").string("data.inc").end();
+        builder.line(builder.lastString, 1, 0).symbol("file").string("image.bin").end();
+        builder.line(0, 2, 0).symbol("db").string("file").end();
+
+        SymbolFile symbolFile = SymbolFile.read(builder.build());
+
+        List<SymbolFile.FileReference> references = symbolFile.getFileReferences();
+        assertEquals(1, references.size());
+        assertEquals(Paths.get("data.inc"), references.get(0).getSourceFile());
+        assertEquals("image.bin", references.get(0).getReference());
+    }
+
+    @Test
+    public void testRead_MacroLine() throws Exception {
+        Builder builder = new Builder("main.asm");
+        builder.line(0, 1, 0).symbol("include").string("load.inc").end();
+        builder.line(builder.lastString, 1, 0).symbol("load").end();
+        int invokingLine = builder.lastLine;
+        // A line generated by the macro belongs to the file that invoked the macro
+        builder.line(0, 0x80000001, invokingLine).symbol("file").string("blob.bin").end();
+
+        SymbolFile symbolFile = SymbolFile.read(builder.build());
+
+        assertEquals(asList(Paths.get("main.asm"), Paths.get("load.inc")), asList(symbolFile.getSourceFiles().toArray()));
+        assertEquals(Paths.get("load.inc"), symbolFile.getFileReferences().get(0).getSourceFile());
+        assertEquals("blob.bin", symbolFile.getFileReferences().get(0).getReference());
+    }
+
+    @Test
+    public void testRead_File() throws Exception {
+        Builder builder = new Builder("main.asm");
+        builder.line(0, 1, 0).symbol("file").string("a.bin").end();
+        Path fasFile = folder.getRoot().toPath().resolve("main.fas");
+        ByteBuffer buffer = builder.build();
+        Files.write(fasFile, buffer.array());
+
+        SymbolFile symbolFile = SymbolFile.read(fasFile);
+
+        assertEquals(Paths.get("main.asm"), symbolFile.getSourceFiles().iterator().next());
+        assertEquals("a.bin", symbolFile.getFileReferences().get(0).getReference());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRead_InvalidSignature() throws Exception {
+        ByteBuffer buffer = new Builder("main.asm").build();
+        buffer.putInt(0, 0x12345678);
+        SymbolFile.read(buffer);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRead_Truncated() throws Exception {
+        Builder builder = new Builder("main.asm");
+        builder.line(0, 1, 0).symbol("mov").symbol("eax").end();
+        ByteBuffer buffer = builder.build();
+        SymbolFile.read(ByteBuffer.wrap(buffer.array(), 0, buffer.limit() - 8).slice());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRead_Empty() throws Exception {
+        SymbolFile.read(ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Builds a minimal symbolic information file, with a strings table that only holds
+     * the name of the main file, and the preprocessed source.
+     */
+    private static final class Builder {
+
+        private final String mainFile;
+        private final ByteArrayOutputStream source = new ByteArrayOutputStream();
+
+        /** The offset of the last line started. */
+        int lastLine;
+
+        /** The offset of the characters of the last quoted string added. */
+        int lastString;
+
+        Builder(String mainFile) {
+            this.mainFile = mainFile;
+        }
+
+        Builder line(int fileName, int lineNumber, int invokingLine) {
+            lastLine = source.size();
+            putInt(fileName);
+            putInt(lineNumber);
+            putInt(invokingLine);
+            putInt(0);
+            return this;
+        }
+
+        Builder symbol(String symbol) {
+            byte[] bytes = symbol.getBytes(Charset.defaultCharset());
+            source.write(0x1A);
+            source.write(bytes.length);
+            source.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Builder string(String string) {
+            byte[] bytes = string.getBytes(Charset.defaultCharset());
+            source.write(0x22);
+            putInt(bytes.length);
+            lastString = source.size();
+            source.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        void end() {
+            source.write(0);
+        }
+
+        ByteBuffer build() {
+            byte[] strings = ("\0" + mainFile + "\0").getBytes(Charset.defaultCharset());
+            byte[] lines = source.toByteArray();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + strings.length + lines.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, SymbolFile.SIGNATURE);
+            buffer.put(4, (byte) 1);
+            buffer.put(5, (byte) 73);
+            buffer.putShort(6, (short) HEADER_LENGTH);
+            buffer.putInt(8, 1);
+            buffer.putInt(16, HEADER_LENGTH);
+            buffer.putInt(20, strings.length);
+            buffer.putInt(32, HEADER_LENGTH + strings.length);
+            buffer.putInt(36, lines.length);
+            buffer.position(HEADER_LENGTH);
+            buffer.put(strings).put(lines);
+            buffer.clear();
+            return buffer;
+        }
+
+        private void putInt(int value) {
+            source.write(value);
+            source.write(value >>> 8);
+            source.write(value >>> 16);
+            source.write(value >>> 24);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.dykstrom.ant.fasm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class WatcherTest {
+
+    private static final long QUIET_PERIOD = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAwaitChanges() throws Exception {
+        Path directory = folder.newFolder("src").toPath().toRealPath();
+
+        try (Watcher watcher = new Watcher()) {
+            watcher.registerTree(directory);
+            assertTrue(watcher.isWatched(directory));
+
+            Path a = Files.write(directory.resolve("a.asm"), singletonList("nop"));
+            Path b = Files.write(directory.resolve("b.asm"), singletonList("nop"));
+
+            Set<Path> changed = awaitChanges(watcher, a, b);
+            assertTrue(changed.contains(a));
+            assertTrue(changed.contains(b));
+            assertFalse(watcher.isOverflow());
+        }
+    }
+
+    @Test
+    public void testAwaitChanges_NewDirectory() throws Exception {
+        Path directory = folder.newFolder("src").toPath().toRealPath();
+
+        try (Watcher watcher = new Watcher()) {
+            watcher.registerTree(directory);
+
+            Path subdirectory = Files.createDirectories(directory.resolve("sub"));
+            Path a = Files.write(subdirectory.resolve("a.asm"), singletonList("nop"));
+
+            Set<Path> changed = awaitChanges(watcher, a);
+            assertTrue(changed.contains(a));
+            assertTrue(watcher.isWatched(subdirectory));
+        }
+    }
+
+    @Test
+    public void testRegister_NotRecursive() throws Exception {
+        Path directory = folder.newFolder("inc").toPath().toRealPath();
+        Path subdirectory = Files.createDirectories(directory.resolve("sub"));
+
+        try (Watcher watcher = new Watcher()) {
+            watcher.register(directory);
+            watcher.register(directory.resolve("missing"));
+
+            assertTrue(watcher.isWatched(directory));
+            assertFalse(watcher.isWatched(subdirectory));
+            assertFalse(watcher.isWatched(directory.resolve("missing")));
+        }
+    }
+
+    /**
+     * Waits for bursts of changes until all expected files have been seen, since some watch
+     * service implementations may report a burst in several parts.
+     */
+    private static Set<Path> awaitChanges(Watcher watcher, Path... expected) throws Exception {
+        Set<Path> changed = new HashSet<>();
+        for (int i = 0; i < 10 && !changed.containsAll(Arrays.asList(expected)); i++) {
+            changed.addAll(watcher.awaitChanges(QUIET_PERIOD));
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.dykstrom.ant.fasm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WorkerClientTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParse() {
+        assertEquals("localhost:4711", WorkerClient.parse("localhost:4711").toString());
+        assertEquals("10.0.0.1:80", WorkerClient.parse(" 10.0.0.1:80 ").toString());
+        assertEquals("::1:4711", WorkerClient.parse("[::1]:4711").toString());
+    }
+
+    @Test
+    public void testParse_Invalid() {
+        for (String value : Arrays.asList("", "localhost", ":4711", "localhost:", "localhost:0", "localhost:65536", "localhost:port")) {
+            try {
+                WorkerClient.parse(value);
+                fail("Expected exception for '" + value + "'");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testIsAllowed() {
+        assertTrue(WorkerProtocol.isAllowed(Collections.emptyList()));
+        assertTrue(WorkerProtocol.isAllowed(Arrays.asList("-m", "16384", "-p", "10", "-d", "ARCH=x64")));
+        assertFalse(WorkerProtocol.isAllowed(Arrays.asList("-s", "/tmp/out.fas")));
+        assertFalse(WorkerProtocol.isAllowed(Arrays.asList("-m", "large")));
+        assertFalse(WorkerProtocol.isAllowed(Arrays.asList("-d", "ARCH")));
+        assertFalse(WorkerProtocol.isAllowed(Collections.singletonList("-m")));
+    }
+
+    @Test
+    public void testToSandboxPath() throws Exception {
+        Path sandbox = folder.getRoot().toPath();
+        Path file = Paths.get("src", "main.asm").toAbsolutePath();
+        Path sandboxFile = WorkerServer.toSandboxPath(sandbox, file.toString());
+        assertTrue(sandboxFile.startsWith(sandbox));
+        assertTrue(sandboxFile.endsWith(Paths.get("src", "main.asm")));
+        // Removing the sandbox directory from paths in the compiler output gives the original paths back
+        if (file.getRoot().toString().equals("/")) {
+            assertEquals(file.toString(), sandboxFile.toString().replace(sandbox.toString(), ""));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testToSandboxPath_Relative() throws Exception {
+        WorkerServer.toSandboxPath(folder.getRoot().toPath(), "src/main.asm");
+    }
+
+    @Test
+    public void testCompile_OutputDiscardedWhenWorkerFails() throws Exception {
+        Path srcFile = folder.newFile("main.asm").toPath();
+        Path destFile = folder.getRoot().toPath().resolve("main.bin");
+        List<String> lines = new ArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            // A worker that sends some output, and then goes away without a final reply
+            Thread worker = new Thread(() -> {
+                try (Socket socket = serverSocket.accept();
+                     DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                    out.writeByte(WorkerProtocol.REPLY_RUNNING);
+                    out.writeByte(WorkerProtocol.REPLY_OUTPUT);
+                    WorkerProtocol.writeString(out, "flat assembler  version 1.73");
+                    out.flush();
+                } catch (IOException ignore) {
+                    // The test fails on the client side
+                }
+            });
+            worker.start();
+            WorkerClient client = new WorkerClient("127.0.0.1", serverSocket.getLocalPort());
+            try (ProcessOutput output = new ProcessOutput()) {
+                try {
+                    client.compile(srcFile, Collections.singletonList(srcFile), Collections.emptyList(), Collections.emptyList(),
+                            destFile, output, lines::add, 0);
+                    fail("Expected IOException");
+                } catch (IOException e) {
+                    // Expected
+                }
+                assertEquals(0, output.length());
+            }
+            worker.join();
+        }
+        assertTrue(lines.isEmpty());
+    }
+}
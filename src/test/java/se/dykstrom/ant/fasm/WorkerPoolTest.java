@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016-2021 Johan Dykstrom
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.dykstrom.ant.fasm;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class WorkerPoolTest {
+
+    private static final WorkerClient WORKER_1 = new WorkerClient("host1", 1);
+    private static final WorkerClient WORKER_2 = new WorkerClient("host2", 2);
+
+    @Test
+    public void testAcquire() throws Exception {
+        Map<WorkerClient, Integer> workers = new LinkedHashMap<>();
+        workers.put(WORKER_1, 2);
+        workers.put(WORKER_2, 1);
+        WorkerPool pool = new WorkerPool(1, workers);
+        assertEquals(4, pool.getSlots());
+
+        // Expect the local slot first, and then the remote slots round-robin
+        assertNull(pool.acquire());
+        assertSame(WORKER_1, pool.acquire());
+        assertSame(WORKER_2, pool.acquire());
+        assertSame(WORKER_1, pool.acquire());
+
+        // Expect a released slot to be handed out again
+        pool.release(null);
+        assertNull(pool.acquire());
+        pool.release(WORKER_2);
+        assertSame(WORKER_2, pool.acquire());
+    }
+
+    @Test
+    public void testAcquire_Wait() throws Exception {
+        WorkerPool pool = new WorkerPool(1, new LinkedHashMap<>());
+        assertNull(pool.acquire());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<WorkerClient> future = executor.submit(pool::acquire);
+            try {
+                future.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected acquire to wait");
+            } catch (TimeoutException e) {
+                // Expected
+            }
+            pool.release(null);
+            assertNull(future.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        Map<WorkerClient, Integer> workers = new LinkedHashMap<>();
+        workers.put(WORKER_1, 2);
+        workers.put(WORKER_2, 2);
+        WorkerPool pool = new WorkerPool(0, workers);
+
+        assertSame(WORKER_1, pool.acquire());
+        pool.fail(WORKER_1);
+        pool.release(WORKER_1);
+
+        // Expect the slots of the failed worker not to be handed out again
+        assertSame(WORKER_2, pool.acquire());
+        assertSame(WORKER_2, pool.acquire());
+        pool.release(WORKER_2);
+        assertSame(WORKER_2, pool.acquire());
+    }
+}